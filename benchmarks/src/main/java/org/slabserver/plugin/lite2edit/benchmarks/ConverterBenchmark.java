@@ -0,0 +1,87 @@
+package org.slabserver.plugin.lite2edit.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slabserver.plugin.lite2edit.ConversionOptions;
+import org.slabserver.plugin.lite2edit.Converter;
+
+/*
+ * End to end litematic to schematic conversion, file to file.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConverterBenchmark {
+	@Param({"32", "128"})
+	public int regionSize;
+	@Param({"1", "8"})
+	public int regionCount;
+	@Param({"16", "4096"})
+	public int paletteSize;
+	@Param({"0.001"})
+	public double tileEntityDensity;
+	@Param({"false", "true"})
+	public boolean negativeDimensions;
+	@Param({"false", "true"})
+	public boolean sanitize;
+	@Param({"1", "4"})
+	public int regionThreads;
+
+	private File workDir, input, outputDir;
+	private ConversionOptions options;
+
+	@Setup
+	public void setup() throws IOException {
+		SyntheticSchematics schematics = new SyntheticSchematics(regionSize, regionCount, paletteSize, tileEntityDensity, negativeDimensions);
+		workDir = Files.createTempDirectory("lite2edit-bench").toFile();
+		input = new File(workDir, "synthetic.litematic");
+		Files.write(input.toPath(), SyntheticSchematics.gzip(schematics.litematic()));
+		outputDir = new File(workDir, "out");
+		options = new ConversionOptions(sanitize);
+		options.scratchDir = new File(workDir, "scratch");
+		if (regionThreads > 1) {
+			options.regionExecutor = Executors.newFixedThreadPool(regionThreads);
+			options.regionThreads = regionThreads;
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		if (options.regionExecutor != null)
+			options.regionExecutor.shutdown();
+		for (File dir : new File[] {outputDir, options.scratchDir, workDir}) {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files)
+					file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Benchmark
+	public List<File> convert() throws IOException {
+		return Converter.litematicToWorldEdit(input, outputDir, options);
+	}
+
+}
@@ -0,0 +1,139 @@
+package org.slabserver.plugin.lite2edit.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slabserver.plugin.lite2edit.ParallelGZIPOutputStream;
+import org.slabserver.plugin.lite2edit.PooledGZIPInputStream;
+import org.slabserver.plugin.lite2edit.PooledGZIPOutputStream;
+
+/*
+ * Gzip decode of litematic input and gzip encode of schematic output,
+ * measured separately from NBT handling. Encoding is compared between
+ * GZIPOutputStream and ParallelGZIPOutputStream at the same level.
+ * The pooled streams reuse zlib state, run with -prof gc to compare allocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GzipBenchmark {
+	@Param({"64", "128"})
+	public int regionSize;
+	@Param({"16", "5000"})
+	public int paletteSize;
+	@Param({"1", "6", "9"})
+	public int level;
+	@Param({"4"})
+	public int threads;
+
+	private byte[] litematic, schematic;
+	private final byte[] buffer = new byte[8192];
+	private ExecutorService executor;
+
+	@Setup
+	public void setup() throws IOException {
+		SyntheticSchematics schematics = new SyntheticSchematics(regionSize, 1, paletteSize, 0.001, false);
+		litematic = SyntheticSchematics.gzip(schematics.litematic());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		schematics.worldEdit().write(out);
+		out.close();
+		schematic = bytes.toByteArray();
+		executor = Executors.newFixedThreadPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Benchmark
+	public long gzipDecode() throws IOException {
+		long total = 0;
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(litematic))) {
+			for (int n; (n = in.read(buffer)) > 0; )
+				total += n;
+		}
+		return total;
+	}
+
+	@Benchmark
+	public long gzipDecodePooled() throws IOException {
+		long total = 0;
+		try (InputStream in = new PooledGZIPInputStream(new ByteArrayInputStream(litematic))) {
+			for (int n; (n = in.read(buffer)) > 0; )
+				total += n;
+		}
+		return total;
+	}
+
+	@Benchmark
+	public long gzipEncode() throws IOException {
+		CountingOutputStream counter = new CountingOutputStream();
+		try (OutputStream out = new GZIPOutputStream(counter) {
+			{
+				def.setLevel(level);
+			}
+		}) {
+			out.write(schematic);
+		}
+		return counter.count;
+	}
+
+	@Benchmark
+	public long gzipEncodePooled() throws IOException {
+		CountingOutputStream counter = new CountingOutputStream();
+		try (OutputStream out = new PooledGZIPOutputStream(counter, level)) {
+			out.write(schematic);
+		}
+		return counter.count;
+	}
+
+	@Benchmark
+	public long gzipEncodeParallel() throws IOException {
+		CountingOutputStream counter = new CountingOutputStream();
+		try (OutputStream out = new ParallelGZIPOutputStream(counter, executor, level, threads)) {
+			out.write(schematic);
+		}
+		return counter.count;
+	}
+
+	static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+package org.slabserver.plugin.lite2edit.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slabserver.plugin.lite2edit.ConversionOptions;
+import org.slabserver.plugin.lite2edit.Converter;
+
+/*
+ * End to end schematic to litematic conversion, file to file.
+ * A scratch threshold of 0 packs the block states into a memory-mapped buffer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LitematicBenchmark {
+	@Param({"32", "128"})
+	public int regionSize;
+	@Param({"16", "4096"})
+	public int paletteSize;
+	@Param({"0.001"})
+	public double tileEntityDensity;
+	@Param({"67108864", "0"})
+	public long scratchMapThreshold;
+
+	private File workDir, input, outputDir;
+	private ConversionOptions options;
+
+	@Setup
+	public void setup() throws IOException {
+		SyntheticSchematics schematics = new SyntheticSchematics(regionSize, 1, paletteSize, tileEntityDensity, false);
+		workDir = Files.createTempDirectory("lite2edit-bench").toFile();
+		input = new File(workDir, "synthetic.schem");
+		Files.write(input.toPath(), SyntheticSchematics.gzip(schematics.worldEdit()));
+		outputDir = new File(workDir, "out");
+		options = new ConversionOptions(false);
+		options.scratchDir = new File(workDir, "scratch");
+		options.scratchMapThreshold = scratchMapThreshold;
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		for (File dir : new File[] {outputDir, options.scratchDir, workDir}) {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files)
+					file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Benchmark
+	public File convert() throws IOException {
+		return Converter.worldEditToLitematic(input, outputDir, options);
+	}
+
+}
@@ -0,0 +1,70 @@
+package org.slabserver.plugin.lite2edit.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slabserver.plugin.lite2edit.NbtReader;
+
+import se.llbit.nbt.CompoundTag;
+import se.llbit.nbt.Tag;
+
+/*
+ * NBT parsing of uncompressed litematics: a full jo-nbt tree
+ * against a streaming pass that visits every tag without building one.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NbtBenchmark {
+	@Param({"32", "128"})
+	public int regionSize;
+	@Param({"1", "16"})
+	public int regionCount;
+	@Param({"0", "0.01"})
+	public double tileEntityDensity;
+
+	private byte[] litematic;
+
+	@Setup
+	public void setup() throws IOException {
+		SyntheticSchematics schematics = new SyntheticSchematics(regionSize, regionCount, 100, tileEntityDensity, false);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		schematics.litematic().write(out);
+		out.close();
+		litematic = bytes.toByteArray();
+	}
+
+	@Benchmark
+	public Tag treeParse() throws IOException {
+		return CompoundTag.read(new DataInputStream(new ByteArrayInputStream(litematic)));
+	}
+
+	@Benchmark
+	public String streamScan() throws IOException {
+		try (NbtReader reader = new NbtReader(new ByteArrayInputStream(litematic))) {
+			reader.next();
+			reader.skip();
+			return reader.name();
+		}
+	}
+
+}
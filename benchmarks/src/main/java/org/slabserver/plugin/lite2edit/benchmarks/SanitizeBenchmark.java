@@ -0,0 +1,59 @@
+package org.slabserver.plugin.lite2edit.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slabserver.plugin.lite2edit.Sanitizer;
+
+/*
+ * Palette remapping and tile entity filtering of a WorldEdit schematic,
+ * streamed from gzipped bytes into a file the way uploads are sanitized.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SanitizeBenchmark {
+	@Param({"64", "128"})
+	public int regionSize;
+	@Param({"16", "4096"})
+	public int paletteSize;
+	@Param({"0", "0.01"})
+	public double tileEntityDensity;
+
+	private byte[] gzipped;
+	private File output;
+
+	@Setup
+	public void setup() throws IOException {
+		gzipped = SyntheticSchematics.gzip(new SyntheticSchematics(regionSize, 1, paletteSize, tileEntityDensity, false).worldEdit());
+		output = File.createTempFile("lite2edit-bench", ".schem");
+	}
+
+	@TearDown
+	public void tearDown() {
+		output.delete();
+	}
+
+	@Benchmark
+	public File sanitize() throws IOException {
+		return Sanitizer.sanitize(new ByteArrayInputStream(gzipped), output);
+	}
+
+}
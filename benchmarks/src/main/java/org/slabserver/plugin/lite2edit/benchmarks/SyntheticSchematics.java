@@ -0,0 +1,243 @@
+package org.slabserver.plugin.lite2edit.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.slabserver.plugin.lite2edit.BlockStateUnpacker;
+
+import se.llbit.nbt.ByteArrayTag;
+import se.llbit.nbt.CompoundTag;
+import se.llbit.nbt.IntArrayTag;
+import se.llbit.nbt.IntTag;
+import se.llbit.nbt.ListTag;
+import se.llbit.nbt.LongArrayTag;
+import se.llbit.nbt.ShortTag;
+import se.llbit.nbt.SpecificTag;
+import se.llbit.nbt.StringTag;
+import se.llbit.nbt.Tag;
+
+/*
+ * Generates litematics and Sponge schematics with a known shape.
+ * Block indices are skewed towards the start of the palette like real builds,
+ * and the palette contains blacklisted blocks so sanitizing has work to do.
+ */
+public class SyntheticSchematics {
+	private static final String[] COMMON_BLOCKS = {
+			"minecraft:air",
+			"minecraft:stone",
+			"minecraft:command_block",
+			"minecraft:oak_sign",
+			"minecraft:structure_block",
+			"minecraft:chest",
+	};
+
+	public final int regionSize, regionCount, paletteSize;
+	public final double tileEntityDensity;
+	public final boolean negativeDimensions;
+
+	public SyntheticSchematics(int regionSize, int regionCount, int paletteSize, double tileEntityDensity, boolean negativeDimensions) {
+		this.regionSize = regionSize;
+		this.regionCount = regionCount;
+		this.paletteSize = paletteSize;
+		this.tileEntityDensity = tileEntityDensity;
+		this.negativeDimensions = negativeDimensions;
+	}
+
+	public int numBlocks() {
+		return regionSize * regionSize * regionSize;
+	}
+
+	public int bitsPerBlock() {
+		return BlockStateUnpacker.bitsPerBlock(paletteSize);
+	}
+
+	public String[] palette() {
+		String[] palette = new String[paletteSize];
+		for (int i = 0; i < paletteSize; ++i) {
+			if (i < COMMON_BLOCKS.length)
+				palette[i] = COMMON_BLOCKS[i];
+			else
+				palette[i] = "minecraft:block_" + i + "[facing=north,waterlogged=false]";
+		}
+		return palette;
+	}
+
+	public int[] indices(int region) {
+		Random random = new Random(region);
+		int[] indices = new int[numBlocks()];
+		int common = Math.min(paletteSize, 8);
+		for (int i = 0; i < indices.length; ++i) {
+			indices[i] = random.nextInt(10) < 7 ? random.nextInt(common) : random.nextInt(paletteSize);
+		}
+		return indices;
+	}
+
+	// packs indices the way Litematica does, straddling longs where needed
+	public static long[] pack(int[] indices, int bitsPerBlock) {
+		long[] words = new long[(int) (((long) indices.length * bitsPerBlock + 63) / 64)];
+		for (int i = 0; i < indices.length; ++i) {
+			long bit = (long) i * bitsPerBlock;
+			int word = (int) (bit >>> 6);
+			int offset = (int) (bit & 63);
+			words[word] |= (long) indices[i] << offset;
+			if (offset + bitsPerBlock > 64)
+				words[word + 1] |= (long) indices[i] >>> (64 - offset);
+		}
+		return words;
+	}
+
+	public static byte[] varints(int[] indices) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(indices.length);
+		for (int v : indices) {
+			while ((v & ~127) != 0) {
+				out.write(v | 128);
+				v >>>= 7;
+			}
+			out.write(v);
+		}
+		return out.toByteArray();
+	}
+
+	public CompoundTag litematic() {
+		CompoundTag regions = new CompoundTag();
+		String[] palette = palette();
+		int sign = negativeDimensions ? -1 : 1;
+		for (int r = 0; r < regionCount; ++r) {
+			List<SpecificTag> blockStatePalette = new ArrayList<>();
+			for (String block : palette) {
+				CompoundTag blockState = new CompoundTag();
+				CompoundTag properties = new CompoundTag();
+				int index = block.indexOf('[');
+				if (index > -1) {
+					for (String property : block.substring(index + 1, block.length() - 1).split(",")) {
+						String[] pair = property.split("=");
+						properties.add(pair[0], new StringTag(pair[1]));
+					}
+					block = block.substring(0, index);
+				}
+				blockState.add("Name", new StringTag(block));
+				blockState.add("Properties", properties);
+				blockStatePalette.add(blockState);
+			}
+
+			List<SpecificTag> tileEntities = new ArrayList<>();
+			for (int[] pos : tileEntityPositions(r)) {
+				CompoundTag tileEntity = new CompoundTag();
+				tileEntity.add("x", new IntTag(pos[0]));
+				tileEntity.add("y", new IntTag(pos[1]));
+				tileEntity.add("z", new IntTag(pos[2]));
+				addTileEntityData(tileEntity, pos[3], "id");
+				tileEntities.add(tileEntity);
+			}
+
+			// same key order as Litematica, block states come first
+			CompoundTag region = new CompoundTag();
+			region.add("BlockStates", new LongArrayTag(pack(indices(r), bitsPerBlock())));
+			region.add("PendingBlockTicks", new ListTag(Tag.TAG_COMPOUND, Collections.emptyList()));
+			region.add("Position", vector(r * regionSize, 0, 0));
+			region.add("BlockStatePalette", new ListTag(Tag.TAG_COMPOUND, blockStatePalette));
+			region.add("Size", vector(sign * regionSize, regionSize, sign * regionSize));
+			region.add("PendingFluidTicks", new ListTag(Tag.TAG_COMPOUND, Collections.emptyList()));
+			region.add("TileEntities", new ListTag(Tag.TAG_COMPOUND, tileEntities));
+			region.add("Entities", new ListTag(Tag.TAG_COMPOUND, Collections.emptyList()));
+			regions.add("Region " + r, region);
+		}
+
+		CompoundTag metadata = new CompoundTag();
+		metadata.add("Name", new StringTag("synthetic"));
+		metadata.add("RegionCount", new IntTag(regionCount));
+		CompoundTag litematic = new CompoundTag();
+		litematic.add("MinecraftDataVersion", new IntTag(2586));
+		litematic.add("Version", new IntTag(5));
+		litematic.add("Metadata", metadata);
+		litematic.add("Regions", regions);
+		CompoundTag root = new CompoundTag();
+		root.add("", litematic);
+		return root;
+	}
+
+	public CompoundTag worldEdit() {
+		String[] palette = palette();
+		CompoundTag wePalette = new CompoundTag();
+		for (int i = 0; i < palette.length; ++i)
+			wePalette.add(palette[i], new IntTag(i));
+
+		List<SpecificTag> blockEntities = new ArrayList<>();
+		for (int[] pos : tileEntityPositions(0)) {
+			CompoundTag blockEntity = new CompoundTag();
+			blockEntity.add("Pos", new IntArrayTag(new int[] {pos[0], pos[1], pos[2]}));
+			addTileEntityData(blockEntity, pos[3], "Id");
+			blockEntities.add(blockEntity);
+		}
+
+		CompoundTag worldEdit = new CompoundTag();
+		worldEdit.add("Palette", wePalette);
+		worldEdit.add("BlockEntities", new ListTag(Tag.TAG_COMPOUND, blockEntities));
+		worldEdit.add("DataVersion", new IntTag(2586));
+		worldEdit.add("Height", new ShortTag((short) regionSize));
+		worldEdit.add("Length", new ShortTag((short) regionSize));
+		worldEdit.add("PaletteMax", new IntTag(paletteSize));
+		worldEdit.add("Version", new IntTag(2));
+		worldEdit.add("Width", new ShortTag((short) regionSize));
+		worldEdit.add("BlockData", new ByteArrayTag(varints(indices(0))));
+		worldEdit.add("Offset", new IntArrayTag(new int[3]));
+		CompoundTag root = new CompoundTag();
+		root.add("Schematic", worldEdit);
+		return root;
+	}
+
+	public static byte[] gzip(CompoundTag root) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+		root.write(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private List<int[]> tileEntityPositions(int region) {
+		Random random = new Random(~region);
+		List<int[]> positions = new ArrayList<>();
+		int count = (int) (numBlocks() * tileEntityDensity);
+		for (int i = 0; i < count; ++i) {
+			positions.add(new int[] {
+					random.nextInt(regionSize),
+					random.nextInt(regionSize),
+					random.nextInt(regionSize),
+					random.nextInt(3)});
+		}
+		return positions;
+	}
+
+	private static void addTileEntityData(CompoundTag tileEntity, int kind, String idKey) {
+		switch (kind) {
+		case 0:
+			tileEntity.add(idKey, new StringTag("minecraft:chest"));
+			tileEntity.add("Items", new ListTag(Tag.TAG_COMPOUND, Collections.emptyList()));
+			break;
+		case 1:
+			tileEntity.add(idKey, new StringTag("minecraft:sign"));
+			tileEntity.add("Text1", new StringTag("{\"text\":\"hello\"}"));
+			tileEntity.add("Text2", new StringTag("{\"text\":\"\",\"clickEvent\":{\"action\":\"run_command\"}}"));
+			break;
+		default:
+			tileEntity.add(idKey, new StringTag("minecraft:command_block"));
+			tileEntity.add("Command", new StringTag("say hi"));
+			break;
+		}
+	}
+
+	private static CompoundTag vector(int x, int y, int z) {
+		CompoundTag vector = new CompoundTag();
+		vector.add("x", new IntTag(x));
+		vector.add("y", new IntTag(y));
+		vector.add("z", new IntTag(z));
+		return vector;
+	}
+
+}
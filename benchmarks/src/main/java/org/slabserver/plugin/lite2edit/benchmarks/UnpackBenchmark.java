@@ -0,0 +1,70 @@
+package org.slabserver.plugin.lite2edit.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slabserver.plugin.lite2edit.BlockStateUnpacker;
+import org.slabserver.plugin.lite2edit.ConversionOptions;
+import org.slabserver.plugin.lite2edit.ScratchBuffer;
+
+/*
+ * Bit unpacking of BlockStates and varint emission into the scratch buffer.
+ * Palettes above 128 entries exercise multi-byte varints.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UnpackBenchmark {
+	@Param({"64", "128"})
+	public int regionSize;
+	@Param({"4", "16", "100", "256", "4096", "5000"})
+	public int paletteSize;
+
+	private long[] blockStates;
+	private byte[] output;
+	private int bitsPerBlock, numBlocks;
+	private ConversionOptions options;
+
+	@Setup
+	public void setup() {
+		SyntheticSchematics schematics = new SyntheticSchematics(regionSize, 1, paletteSize, 0, false);
+		bitsPerBlock = schematics.bitsPerBlock();
+		numBlocks = schematics.numBlocks();
+		blockStates = SyntheticSchematics.pack(schematics.indices(0), bitsPerBlock);
+		output = new byte[numBlocks * new BlockStateUnpacker(bitsPerBlock, numBlocks).maxBytesPerBlock()];
+		options = new ConversionOptions();
+	}
+
+	@Benchmark
+	public int unpackToArray() {
+		BlockStateUnpacker unpacker = new BlockStateUnpacker(bitsPerBlock, numBlocks);
+		return unpacker.unpack(blockStates, 0, blockStates.length, output, 0);
+	}
+
+	@Benchmark
+	public int unpackToScratch() throws IOException {
+		BlockStateUnpacker unpacker = new BlockStateUnpacker(bitsPerBlock, numBlocks);
+		try (ScratchBuffer scratch = ScratchBuffer.allocate((long) numBlocks * unpacker.maxBytesPerBlock(), options)) {
+			// fed in chunks, the way blocks arrive from the NBT stream
+			for (int offset = 0; offset < blockStates.length; offset += 1024) {
+				unpacker.unpack(blockStates, offset, Math.min(1024, blockStates.length - offset), scratch);
+			}
+			return scratch.size();
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Copies everything read from the wrapped stream into an archive file.
+ * Writes happen on the given executor, which must run tasks in order,
+ * so disk I/O doesn't hold up the conversion reading the stream.
+ *
+ * Read bytes are gathered in pooled buffers, which are handed to the executor once full.
+ * Only a few buffers may wait to be written, once the disk falls that far behind
+ * the reader waits for it, so a slow disk can't pile the upload up on the heap.
+ */
+public class ArchivingInputStream extends FilterInputStream {
+	// buffers handed to the executor and not written yet
+	private static final int MAX_PENDING = 4;
+
+	private final Executor archiver;
+	private final OutputStream archive;
+	private final File archiveFile;
+	private final Logger logger;
+	private final Semaphore pending = new Semaphore(MAX_PENDING);
+	private byte[] buffer = ResourcePool.takeBuffer();
+	private int buffered;
+	private boolean closed;
+	private volatile boolean failed;
+
+	public ArchivingInputStream(InputStream in, File archiveFile, Executor archiver, Logger logger) throws IOException {
+		super(in);
+		this.archiver = archiver;
+		this.archiveFile = archiveFile;
+		// writes come in whole pooled buffers, so the file isn't buffered again
+		this.archive = new FileOutputStream(archiveFile);
+		this.logger = logger;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0 && !failed) {
+			buffer[buffered++] = (byte) b;
+			if (buffered == buffer.length)
+				flush();
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		for (int i = 0; i < n && !failed; ) {
+			int count = Math.min(n - i, buffer.length - buffered);
+			System.arraycopy(b, off + i, buffer, buffered, count);
+			buffered += count;
+			i += count;
+			if (buffered == buffer.length)
+				flush();
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// skipped bytes still have to end up in the archive
+		byte[] chunk = ResourcePool.takeBuffer();
+		long skipped = 0;
+		try {
+			while (skipped < n) {
+				int r = read(chunk, 0, (int) Math.min(chunk.length, n - skipped));
+				if (r < 0)
+					break;
+				skipped += r;
+			}
+		} finally {
+			ResourcePool.giveBuffer(chunk);
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			super.close();
+			flush();
+		} finally {
+			ResourcePool.giveBuffer(buffer);
+			buffer = null;
+			Runnable closeArchive = () -> {
+				try {
+					archive.close();
+				} catch (IOException e) {
+					fail(e);
+				}
+			};
+			try {
+				archiver.execute(closeArchive);
+			} catch (RejectedExecutionException e) {
+				closeArchive.run();
+			}
+		}
+	}
+
+	// hands the buffered bytes to the executor, waiting while too many are pending
+	private void flush() throws IOException {
+		if (buffered == 0 || failed)
+			return;
+		try {
+			pending.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		byte[] chunk = buffer;
+		int length = buffered;
+		buffer = ResourcePool.takeBuffer();
+		buffered = 0;
+		try {
+			archiver.execute(() -> {
+				try {
+					if (!failed)
+						archive.write(chunk, 0, length);
+				} catch (IOException e) {
+					fail(e);
+				} finally {
+					ResourcePool.giveBuffer(chunk);
+					pending.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the plugin is being disabled
+			ResourcePool.giveBuffer(chunk);
+			pending.release();
+			fail(e);
+		}
+	}
+
+	private void fail(Exception e) {
+		// a failed archive shouldn't fail the conversion
+		failed = true;
+		logger.log(Level.WARNING, "Could not archive " + archiveFile, e);
+	}
+
+}
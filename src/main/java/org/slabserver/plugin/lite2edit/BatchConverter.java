@@ -0,0 +1,334 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Converts litematics in bulk outside of the server:
+ *
+ *   java -jar Lite2Edit.jar [options] <input>... <output directory>
+ *
+ * Inputs are litematic files, directories searched for litematics, or glob patterns
+ * such as 'archive/**.litematic'. Outputs keep the input's path relative to the directory it was found in,
+ * so two inputs with the same relative path are refused rather than written over each other.
+ * Files are converted in parallel on a work-stealing pool, each one on a single thread.
+ *
+ * Conversions are remembered in a state file in the output directory,
+ * inputs that haven't changed since are skipped on the next run.
+ */
+public class BatchConverter {
+	private static final String STATE = ".lite2edit-batch";
+	private static final String USAGE = String.join("\n",
+			"Usage: java -jar Lite2Edit.jar [options] <input>... <output directory>",
+			"Inputs are litematic files, directories or glob patterns.",
+			"  --threads <n>   files converted at the same time, defaults to the number of processors",
+			"  --sanitize      sanitize the converted schematics with the default rules",
+			"  --level <n>     gzip level of written schematics, 1 to 9",
+			"  --tile <n>      split regions with more blocks than this into several schematics",
+			"  --compact       drop unused palette entries and number the rest by how often they're used",
+			"  --materials     write the materials of each litematic to <name>-materials.csv",
+			"  --hash          skip inputs whose content is unchanged instead of their size and modification time",
+			"  --force         convert every input, even if it was converted before");
+
+	private final File outputDir;
+	private final ConversionOptions options;
+	private final boolean hash, force, materials;
+	private final PrintStream out;
+	// the stamp and outputs an input was last converted with, keyed by its relative path
+	private final Map<String, List<String>> state = new ConcurrentHashMap<>();
+	private final AtomicInteger converted = new AtomicInteger(), skipped = new AtomicInteger(), failed = new AtomicInteger();
+	private final AtomicLong inputBytes = new AtomicLong();
+	private BufferedWriter stateWriter;
+
+	public BatchConverter(File outputDir, ConversionOptions options, boolean hash, boolean force, boolean materials, PrintStream out) {
+		this.outputDir = outputDir;
+		this.options = options;
+		this.hash = hash;
+		this.force = force;
+		this.materials = materials;
+		this.out = out;
+	}
+
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean sanitize = false, compact = false, materials = false, hash = false, force = false;
+		int level = 6;
+		long tile = 0;
+		List<String> paths = new ArrayList<>();
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				switch (args[i]) {
+				case "--threads":
+					threads = Math.max(1, Integer.parseInt(args[++i]));
+					break;
+				case "--sanitize":
+					sanitize = true;
+					break;
+				case "--level":
+					level = Math.max(1, Math.min(9, Integer.parseInt(args[++i])));
+					break;
+				case "--tile":
+					tile = Math.max(0, Long.parseLong(args[++i]));
+					break;
+				case "--compact":
+					compact = true;
+					break;
+				case "--materials":
+					materials = true;
+					break;
+				case "--hash":
+					hash = true;
+					break;
+				case "--force":
+					force = true;
+					break;
+				case "--help":
+					System.out.println(USAGE);
+					return;
+				default:
+					paths.add(args[i]);
+					break;
+				}
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			paths.clear();
+		}
+		if (paths.size() < 2) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+
+		// one line per sanitized file would drown out the progress
+		Logger.getLogger("Lite2Edit").setLevel(Level.WARNING);
+		ConversionOptions options = new ConversionOptions(sanitize);
+		options.compressionLevel = level;
+		options.compactPalette = compact;
+		if (tile > 0)
+			options.maxTileVolume = tile;
+		File outputDir = new File(paths.remove(paths.size() - 1));
+		options.scratchDir = new File(outputDir, ".scratch");
+		// leave some of the heap for parsing and tile entities
+		options.memoryBudget = new MemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+
+		BatchConverter batch = new BatchConverter(outputDir, options, hash, force, materials, System.out);
+		try {
+			boolean ok = batch.run(paths, threads);
+			System.exit(ok ? 0 : 1);
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	// returns false if any file failed to convert
+	public boolean run(List<String> inputs, int threads) throws IOException {
+		List<Input> files = new ArrayList<>();
+		Map<String, Path> keys = new HashMap<>();
+		for (String input : inputs) {
+			for (Input file : find(input)) {
+				Path absolute = file.file.toAbsolutePath().normalize();
+				Path previous = keys.putIfAbsent(file.key, absolute);
+				// overlapping inputs find the same file more than once
+				if (previous == null)
+					files.add(file);
+				else if (!previous.equals(absolute))
+					throw new IOException(previous + " and " + absolute + " would both be converted to " + file.key);
+			}
+		}
+		Files.createDirectories(outputDir.toPath());
+		loadState();
+		out.println("Converting " + files.size() + " litematics on " + threads + " threads");
+
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newWorkStealingPool(threads);
+		try (BufferedWriter writer = Files.newBufferedWriter(new File(outputDir, STATE).toPath(), StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			stateWriter = writer;
+			List<Future<?>> futures = new ArrayList<>();
+			for (Input input : files) {
+				futures.add(pool.submit(() -> convert(input)));
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (Exception e) {
+					// convert reports its own failures
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		out.println(String.format(Locale.ROOT, "%d converted, %d skipped, %d failed in %.1fs, %.1f files/s, %.1f MB/s",
+				converted.get(), skipped.get(), failed.get(), seconds,
+				converted.get() / seconds, inputBytes.get() / seconds / (1 << 20)));
+		return failed.get() == 0;
+	}
+
+	private void convert(Input input) {
+		File file = input.file.toFile();
+		File targetDir = input.relative.getParent() == null ? outputDir : new File(outputDir, input.relative.getParent().toString());
+		String key = input.key;
+		long start = System.nanoTime();
+		try {
+			String stamp = stamp(file);
+			if (!force && upToDate(state.get(key), stamp, targetDir)) {
+				skipped.incrementAndGet();
+				return;
+			}
+			ConversionResult result = Converter.convertLitematic(file, targetDir, options);
+			List<File> outputs = new ArrayList<>(result.schematics);
+			if (materials) {
+				String baseName = file.getName().contains(".") ? file.getName().substring(0, file.getName().lastIndexOf('.')) : file.getName();
+				File csv = new File(targetDir, baseName.replaceAll("[^\\w-]+", "_") + "-materials.csv");
+				result.materials().writeCsv(csv);
+				outputs.add(csv);
+			}
+			inputBytes.addAndGet(file.length());
+			converted.incrementAndGet();
+			record(key, stamp, outputs);
+			out.println(String.format(Locale.ROOT, "%s: %d schematics in %.0fms", key, result.schematics.size(), (System.nanoTime() - start) / 1e6));
+		} catch (IOException | RuntimeException e) {
+			failed.incrementAndGet();
+			out.println(key + ": failed, " + e);
+		}
+	}
+
+	// skipped if the stamp matches and none of the outputs were removed since
+	private static boolean upToDate(List<String> entry, String stamp, File targetDir) {
+		if (entry == null || !entry.get(0).equals(stamp))
+			return false;
+		for (String output : entry.subList(1, entry.size())) {
+			if (!new File(targetDir, output).exists())
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * What an input has to match to be skipped, together with the converter version and settings.
+	 * Without --hash that's the size and modification time, with it the content's hash.
+	 */
+	private String stamp(File file) throws IOException {
+		String settings = Converter.VERSION + " " + (options.sanitize ? "sanitize" : "raw") + " " + options.maxTileVolume
+				+ (options.compactPalette ? " compact" : "") + (materials ? " materials" : "");
+		if (!hash)
+			return settings + " " + file.length() + " " + file.lastModified();
+		MessageDigest digest = ConversionCache.newDigest();
+		byte[] buffer = ResourcePool.takeBuffer();
+		try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+			while (in.read(buffer) >= 0);
+		} finally {
+			ResourcePool.giveBuffer(buffer);
+		}
+		StringBuilder hex = new StringBuilder(settings).append(' ');
+		for (byte b : digest.digest())
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	/*
+	 * One line per converted input, its path, stamp and output names separated by tabs.
+	 * Lines are appended as each file finishes, so an interrupted run resumes where it stopped.
+	 */
+	private synchronized void record(String key, String stamp, List<File> outputs) throws IOException {
+		List<String> entry = new ArrayList<>();
+		entry.add(stamp);
+		for (File output : outputs)
+			entry.add(output.getName());
+		state.put(key, entry);
+		stateWriter.write(key + "\t" + String.join("\t", entry));
+		stateWriter.newLine();
+		stateWriter.flush();
+	}
+
+	// later lines for the same input replace earlier ones
+	private void loadState() throws IOException {
+		File file = new File(outputDir, STATE);
+		if (!file.exists())
+			return;
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			String[] fields = line.split("\t", -1);
+			if (fields.length >= 2)
+				state.put(fields[0], Arrays.asList(fields).subList(1, fields.length));
+		}
+	}
+
+	private static class Input {
+		final Path file, relative;
+		// the outputs' path and the state key
+		final String key;
+
+		Input(Path file, Path relative) {
+			this.file = file;
+			this.relative = relative;
+			this.key = relative.toString().replace(File.separatorChar, '/');
+		}
+	}
+
+	/*
+	 * Litematics found for one input argument. Paths are relative to the directory
+	 * searched, or to the part of a glob before its first wildcard.
+	 */
+	private static List<Input> find(String input) throws IOException {
+		Path path = Paths.get(input);
+		if (Files.isRegularFile(path))
+			return Arrays.asList(new Input(path, path.getFileName()));
+		if (Files.isDirectory(path))
+			return walk(path, p -> p.toString().endsWith(".litematic"));
+
+		int wildcard = indexOfWildcard(input);
+		if (wildcard < 0)
+			throw new IOException("Input not found: " + input);
+		int separator = Math.max(input.lastIndexOf('/', wildcard), input.lastIndexOf(File.separatorChar, wildcard));
+		Path base = Paths.get(separator < 0 ? "." : input.substring(0, separator + 1));
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input.substring(separator + 1));
+		return walk(base, p -> matcher.matches(base.relativize(p)));
+	}
+
+	private static List<Input> walk(Path base, PathMatcher matcher) throws IOException {
+		try (Stream<Path> paths = Files.walk(base)) {
+			return paths.filter(Files::isRegularFile).filter(matcher::matches).sorted()
+					.map(p -> new Input(p, base.relativize(p)))
+					.collect(Collectors.toList());
+		}
+	}
+
+	private static int indexOfWildcard(String input) {
+		for (int i = 0; i < input.length(); ++i) {
+			if ("*?[{".indexOf(input.charAt(i)) >= 0)
+				return i;
+		}
+		return -1;
+	}
+
+}
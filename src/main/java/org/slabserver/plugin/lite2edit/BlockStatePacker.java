@@ -0,0 +1,124 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Packs WorldEdit varint block data into Litematica's BlockStates long array,
+ * the reverse of BlockStateUnpacker. Varints are written to the packer as a stream,
+ * so block data can be fed in chunks straight from the reader, and the packed longs
+ * are written big-endian to a scratch buffer, ready to be copied into a long array tag.
+ *
+ * Indices are packed back to back at the given width and may straddle two longs,
+ * the same layout LitematicaBitArray reads.
+ */
+public class BlockStatePacker extends OutputStream {
+	private final int bitsPerBlock, numBlocks, words;
+	private final int[] remap;
+	private final ScratchBuffer out;
+	private final byte[] single = new byte[1];
+	private byte[] staging;
+	// the long being filled and how many of its bits are taken
+	private long word;
+	private int wordBits;
+	// a varint that continues in the next chunk
+	private int varint, varintShift;
+	private int count, nonZero, wordsWritten;
+
+	/*
+	 * remap maps WorldEdit ids to palette indices, ids outside of it become index 0.
+	 */
+	public BlockStatePacker(int bitsPerBlock, int numBlocks, int[] remap, ScratchBuffer out) {
+		this.bitsPerBlock = bitsPerBlock;
+		this.numBlocks = numBlocks;
+		this.words = words(numBlocks, bitsPerBlock);
+		this.remap = remap;
+		this.out = out;
+	}
+
+	public static int words(int numBlocks, int bitsPerBlock) {
+		return (int) (((long) numBlocks * bitsPerBlock + 63) / 64);
+	}
+
+	// length of the long array once finished
+	public int words() {
+		return words;
+	}
+
+	public int blocksPacked() {
+		return count;
+	}
+
+	// blocks packed with an index other than 0, which is air in litematic palettes
+	public int nonZeroBlocks() {
+		return nonZero;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		single[0] = (byte) b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int offset, int length) throws IOException {
+		// every byte can complete at most one index
+		int maxBytes = (int) Math.min(Integer.MAX_VALUE, ((long) length * bitsPerBlock / 64 + 2) * Long.BYTES);
+		if (staging == null || staging.length < maxBytes)
+			staging = new byte[maxBytes];
+		final int bits = bitsPerBlock;
+		final int[] remap = this.remap;
+		byte[] staging = this.staging;
+		int pos = 0;
+		for (int i = offset, end = offset + length; i < end; ++i) {
+			byte x = b[i];
+			varint |= (x & 127) << varintShift;
+			if (x < 0) {
+				varintShift += 7;
+				continue;
+			}
+			int v = varint;
+			varint = 0;
+			varintShift = 0;
+			// anything past the last block is ignored
+			if (count == numBlocks)
+				continue;
+			long index = v >= 0 && v < remap.length ? remap[v] : 0;
+			count++;
+			if (index != 0)
+				nonZero++;
+			word |= index << wordBits;
+			wordBits += bits;
+			if (wordBits >= 64) {
+				pos = putLong(staging, pos, word);
+				wordBits -= 64;
+				// the bits of the index that didn't fit start the next long
+				word = wordBits == 0 ? 0 : index >>> (bits - wordBits);
+			}
+		}
+		wordsWritten += pos / Long.BYTES;
+		out.write(staging, 0, pos);
+	}
+
+	// writes the last partial long, missing blocks are left as index 0
+	public void finish() throws IOException {
+		byte[] buffer = new byte[Long.BYTES];
+		if (wordBits > 0 && wordsWritten < words) {
+			putLong(buffer, 0, word);
+			out.write(buffer, 0, Long.BYTES);
+			wordsWritten++;
+			word = 0;
+			wordBits = 0;
+		}
+		putLong(buffer, 0, 0);
+		for (; wordsWritten < words; ++wordsWritten)
+			out.write(buffer, 0, Long.BYTES);
+	}
+
+	private static int putLong(byte[] dst, int pos, long v) {
+		for (int shift = 56; shift >= 0; shift -= 8)
+			dst[pos++] = (byte) (v >>> shift);
+		return pos;
+	}
+
+}
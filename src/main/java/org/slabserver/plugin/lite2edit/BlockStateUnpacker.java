@@ -0,0 +1,239 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.IOException;
+
+/*
+ * Unpacks Litematica's BlockStates long array into WorldEdit varints.
+ * Palette indices are packed back to back and may straddle two longs,
+ * the unpacker keeps the leftover bits so words can be fed in chunks.
+ *
+ * Each call handles whole longs at a time. Widths that divide 64 (2, 4, 8, 16)
+ * never straddle and take a loop without carry handling, and widths up to 7
+ * can only produce one byte varints, so those loops skip the varint branch.
+ *
+ * Every index goes through a remap table on the way out, which lets the
+ * sanitizer replace blacklisted palette entries without a second pass.
+ * Indices are counted on the way as well, see histogram().
+ */
+public class BlockStateUnpacker {
+	private final int bitsPerBlock, numBlocks, blocksPerWord, maxVarintBytes;
+	private final long mask;
+	private final int[] remap;
+	// blocks unpacked per packed index, before the remap
+	private final int[] counts;
+	private long carry;
+	private int carryBits, count;
+	private byte[] staging;
+
+	public BlockStateUnpacker(int bitsPerBlock, int numBlocks) {
+		this(bitsPerBlock, numBlocks, null);
+	}
+
+	/*
+	 * remap maps palette indices to the indices written out, null keeps them as they are.
+	 * Indices past the end of the table are written unchanged.
+	 */
+	public BlockStateUnpacker(int bitsPerBlock, int numBlocks, int[] remap) {
+		this.bitsPerBlock = bitsPerBlock;
+		this.numBlocks = numBlocks;
+		this.blocksPerWord = 64 / bitsPerBlock;
+		this.maxVarintBytes = (bitsPerBlock + 6) / 7;
+		this.mask = (1L << bitsPerBlock) - 1;
+		// cover every value the mask can produce so the loops don't need bounds checks
+		this.remap = new int[1 << bitsPerBlock];
+		for (int i = 0; i < this.remap.length; ++i)
+			this.remap[i] = remap != null && i < remap.length ? remap[i] : i;
+		this.counts = new int[this.remap.length];
+	}
+
+	public static int bitsPerBlock(int paletteSize) {
+		return Math.max(2, Integer.SIZE - Integer.numberOfLeadingZeros(paletteSize - 1));
+	}
+
+	// largest varint size any index of this width can take
+	public int maxBytesPerBlock() {
+		return maxVarintBytes;
+	}
+
+	public int blocksUnpacked() {
+		return count;
+	}
+
+	/*
+	 * Blocks unpacked so far per index written out, after the remap.
+	 * The array is as long as the largest index written plus one.
+	 */
+	public int[] histogram() {
+		int length = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			if (counts[i] != 0)
+				length = Math.max(length, remap[i] + 1);
+		}
+		int[] histogram = new int[length];
+		for (int i = 0; i < counts.length; ++i) {
+			if (counts[i] != 0)
+				histogram[remap[i]] += counts[i];
+		}
+		return histogram;
+	}
+
+	public boolean isComplete() {
+		return count >= numBlocks;
+	}
+
+	// upper bound on the bytes produced by unpacking the given number of longs
+	public int maxOutput(int words) {
+		long blocks = Math.min((long) words * (blocksPerWord + 1), numBlocks - count);
+		return (int) Math.min(Integer.MAX_VALUE, blocks * maxVarintBytes);
+	}
+
+	public void unpack(long[] words, int offset, int length, ScratchBuffer out) throws IOException {
+		int maxBytes = maxOutput(length);
+		out.ensureCapacity((long) out.size() + maxBytes);
+		byte[] array = out.array();
+		if (array != null) {
+			out.setSize(unpack(words, offset, length, array, out.size()));
+		}
+		else {
+			// memory-mapped buffers are filled from a small heap chunk
+			if (staging == null || staging.length < maxBytes)
+				staging = new byte[maxBytes];
+			int n = unpack(words, offset, length, staging, 0);
+			out.write(staging, 0, n);
+		}
+	}
+
+	/*
+	 * Unpacks the given longs into dst starting at pos.
+	 * Returns the position after the last varint written.
+	 */
+	public int unpack(long[] words, int offset, int length, byte[] dst, int pos) {
+		if (64 % bitsPerBlock == 0) {
+			if (bitsPerBlock <= 7)
+				return unpackAlignedBytes(words, offset, offset + length, dst, pos);
+			return unpackAlignedVarints(words, offset, offset + length, dst, pos);
+		}
+		if (bitsPerBlock <= 7)
+			return unpackPackedBytes(words, offset, offset + length, dst, pos);
+		return unpackPackedVarints(words, offset, offset + length, dst, pos);
+	}
+
+	private int unpackAlignedBytes(long[] words, int w, int end, byte[] dst, int pos) {
+		final int bits = bitsPerBlock;
+		final long mask = this.mask;
+		final int[] remap = this.remap;
+		final int[] counts = this.counts;
+		for (; w < end && count < numBlocks; ++w) {
+			long word = words[w];
+			int n = Math.min(blocksPerWord, numBlocks - count);
+			for (int k = 0; k < n; ++k) {
+				int i = (int) (word & mask);
+				counts[i]++;
+				dst[pos++] = (byte) remap[i];
+				word >>>= bits;
+			}
+			count += n;
+		}
+		return pos;
+	}
+
+	private int unpackAlignedVarints(long[] words, int w, int end, byte[] dst, int pos) {
+		final int bits = bitsPerBlock;
+		final long mask = this.mask;
+		final int[] remap = this.remap;
+		final int[] counts = this.counts;
+		for (; w < end && count < numBlocks; ++w) {
+			long word = words[w];
+			int n = Math.min(blocksPerWord, numBlocks - count);
+			for (int k = 0; k < n; ++k) {
+				int i = (int) (word & mask);
+				counts[i]++;
+				int v = remap[i];
+				word >>>= bits;
+				while ((v & ~127) != 0) {
+					dst[pos++] = (byte) (v | 128);
+					v >>>= 7;
+				}
+				dst[pos++] = (byte) v;
+			}
+			count += n;
+		}
+		return pos;
+	}
+
+	private int unpackPackedBytes(long[] words, int w, int end, byte[] dst, int pos) {
+		final int bits = bitsPerBlock;
+		final long mask = this.mask;
+		final int[] remap = this.remap;
+		final int[] counts = this.counts;
+		for (; w < end && count < numBlocks; ++w) {
+			long word = words[w];
+			int shift = 0;
+			if (carryBits != 0) {
+				// finish the index that started in the previous long
+				int i = (int) ((carry | (word << carryBits)) & mask);
+				counts[i]++;
+				dst[pos++] = (byte) remap[i];
+				count++;
+				shift = bits - carryBits;
+			}
+			int n = Math.min((64 - shift) / bits, numBlocks - count);
+			long rest = word >>> shift;
+			for (int k = 0; k < n; ++k) {
+				int i = (int) (rest & mask);
+				counts[i]++;
+				dst[pos++] = (byte) remap[i];
+				rest >>>= bits;
+			}
+			count += n;
+			shift += n * bits;
+			carryBits = 64 - shift;
+			carry = carryBits == 0 ? 0 : word >>> shift;
+		}
+		return pos;
+	}
+
+	private int unpackPackedVarints(long[] words, int w, int end, byte[] dst, int pos) {
+		final int bits = bitsPerBlock;
+		final long mask = this.mask;
+		final int[] remap = this.remap;
+		final int[] counts = this.counts;
+		for (; w < end && count < numBlocks; ++w) {
+			long word = words[w];
+			int shift = 0;
+			int v;
+			if (carryBits != 0) {
+				// finish the index that started in the previous long
+				int i = (int) ((carry | (word << carryBits)) & mask);
+				counts[i]++;
+				v = remap[i];
+				while ((v & ~127) != 0) {
+					dst[pos++] = (byte) (v | 128);
+					v >>>= 7;
+				}
+				dst[pos++] = (byte) v;
+				count++;
+				shift = bits - carryBits;
+			}
+			int n = Math.min((64 - shift) / bits, numBlocks - count);
+			long rest = word >>> shift;
+			for (int k = 0; k < n; ++k) {
+				int i = (int) (rest & mask);
+				counts[i]++;
+				v = remap[i];
+				rest >>>= bits;
+				while ((v & ~127) != 0) {
+					dst[pos++] = (byte) (v | 128);
+					v >>>= 7;
+				}
+				dst[pos++] = (byte) v;
+			}
+			count += n;
+			shift += n * bits;
+			carryBits = 64 - shift;
+			carry = carryBits == 0 ? 0 : word >>> shift;
+		}
+		return pos;
+	}
+
+}
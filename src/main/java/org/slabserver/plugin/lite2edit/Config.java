@@ -1,11 +1,21 @@
 package org.slabserver.plugin.lite2edit;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 
 public class Config {
-	public String token;
+	public String token, metricsFile;
 	public long whitelistedGuild, whitelistedRole, dailyUploadLimit;
-	public boolean sanitize;
+	public boolean sanitize, streamUploads, archiveUploads, memberEvents, compactPalette, materialList;
+	public long scratchMapThreshold, conversionCacheSize, memberCacheMinutes, memoryBudget, maxBlocks, maxTileVolume;
+	public int regionThreads, deflateThreads, compressionLevel, schematicVersion, conversionThreads, conversionQueueSize, maxUploadsPerUser;
+	public SanitizeRules sanitizeRules;
+	private final File dataFolder;
 
 	public Config(Lite2Edit plugin) {
 		FileConfiguration config = plugin.getConfig();
@@ -13,7 +23,74 @@ public class Config {
 		whitelistedGuild = config.getLong("whitelistedGuild");
 		whitelistedRole = config.getLong("whitelistedRole");
 		dailyUploadLimit = config.getLong("dailyUploadLimit", 50);
+		memberCacheMinutes = Math.max(0, config.getLong("memberCacheMinutes", 10));
+		memberEvents = config.getBoolean("memberEvents", false);
 		sanitize = config.getBoolean("sanitize", true);
+		streamUploads = config.getBoolean("streamUploads", true);
+		archiveUploads = config.getBoolean("archiveUploads", true);
+		scratchMapThreshold = config.getLong("scratchMapThreshold", 64);
+		memoryBudget = Math.max(0, config.getLong("memoryBudget", 512));
+		maxBlocks = config.getLong("maxBlocks", 200000000);
+		if (maxBlocks <= 0)
+			maxBlocks = Long.MAX_VALUE;
+		maxTileVolume = Math.max(0, config.getLong("maxTileVolume", 16777216));
+		conversionCacheSize = Math.max(0, config.getLong("conversionCacheSize", 256));
+		regionThreads = Math.max(1, config.getInt("regionThreads", 2));
+		deflateThreads = Math.max(0, config.getInt("deflateThreads", 2));
+		compressionLevel = Math.max(1, Math.min(9, config.getInt("compressionLevel", 6)));
+		compactPalette = config.getBoolean("compactPalette", true);
+		materialList = config.getBoolean("materialList", true);
+		schematicVersion = config.getInt("schematicVersion", 0);
+		if (schematicVersion != 2 && schematicVersion != 3)
+			schematicVersion = 0;
+		conversionThreads = Math.max(1, config.getInt("conversionThreads", 2));
+		conversionQueueSize = Math.max(1, config.getInt("conversionQueueSize", 20));
+		maxUploadsPerUser = Math.max(1, config.getInt("maxUploadsPerUser", 3));
+		metricsFile = config.getString("metricsFile", "");
+		sanitizeRules = loadSanitizeRules(config.getConfigurationSection("sanitizeRules"));
+		dataFolder = plugin.getDataFolder();
+	}
+
+	// missing keys fall back to the built in rules
+	private static SanitizeRules loadSanitizeRules(ConfigurationSection section) {
+		if (section == null)
+			return SanitizeRules.defaults();
+
+		List<SanitizeRules.BlockRule> blocks = new ArrayList<>();
+		for (String pattern : section.contains("blocks") ? section.getStringList("blocks") : SanitizeRules.defaultBlocks())
+			blocks.add(new SanitizeRules.BlockRule(pattern));
+
+		List<SanitizeRules.TileEntityRule> tileEntities = new ArrayList<>();
+		for (String pattern : section.contains("removeTileEntities") ? section.getStringList("removeTileEntities") : SanitizeRules.defaultTileEntities())
+			tileEntities.add(new SanitizeRules.TileEntityRule(pattern));
+
+		List<SanitizeRules.DataRule> data = new ArrayList<>();
+		List<? extends Map<?, ?>> dataRules = section.contains("tileEntityData") ? section.getMapList("tileEntityData") : SanitizeRules.defaultData();
+		for (Map<?, ?> rule : dataRules) {
+			if (rule.get("id") == null || rule.get("path") == null)
+				continue;
+			data.add(new SanitizeRules.DataRule(
+					String.valueOf(rule.get("id")),
+					String.valueOf(rule.get("path")),
+					rule.get("contains") == null ? null : String.valueOf(rule.get("contains")),
+					rule.get("replace") == null ? null : String.valueOf(rule.get("replace"))));
+		}
+
+		return new SanitizeRules(blocks, section.getString("replacement", "minecraft:stone"),
+				tileEntities, data, section.getBoolean("removeEntities", true));
+	}
+
+	public ConversionOptions conversionOptions() {
+		ConversionOptions options = new ConversionOptions(sanitize);
+		options.scratchMapThreshold = scratchMapThreshold << 20;
+		options.compressionLevel = compressionLevel;
+		options.maxBlocks = maxBlocks;
+		options.maxTileVolume = maxTileVolume;
+		options.compactPalette = compactPalette;
+		if (schematicVersion != 0)
+			options.schematicWriter = SchematicWriter.forVersion(schematicVersion, 0);
+		options.scratchDir = new File(dataFolder, "scratch");
+		return options;
 	}
 
 }
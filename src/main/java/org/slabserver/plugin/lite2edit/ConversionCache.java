@@ -0,0 +1,220 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Converted schematics keyed by a hash of the upload and the settings it was converted with,
+ * so an upload that was seen before is copied instead of converted again.
+ * The least recently used entries are dropped once the cache grows past its size limit.
+ * The index is kept in the cache directory and survives restarts.
+ */
+public class ConversionCache {
+	private static final String INDEX = "index.txt";
+
+	private final File dir;
+	private final long maxBytes;
+	// access ordered, the eldest entry is the least recently used
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes;
+
+	private static class Entry {
+		final long bytes;
+		/*
+		 * Output names relative to the name of the upload they came from,
+		 * so a hit can be named after the new upload.
+		 */
+		final List<String> suffixes;
+
+		Entry(long bytes, List<String> suffixes) {
+			this.bytes = bytes;
+			this.suffixes = suffixes;
+		}
+	}
+
+	public ConversionCache(File dir, long maxBytes) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(dir.toPath());
+		load();
+	}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Combines the hash of the uploaded bytes with everything else that affects the output.
+	 * Changing the converter or the sanitize rules leaves old entries unused until they're evicted.
+	 */
+	public static String key(byte[] contentHash, String kind, boolean sanitize) {
+		MessageDigest digest = newDigest();
+		digest.update(contentHash);
+		String settings = kind + "\n" + Converter.VERSION + "\n"
+				+ (sanitize ? "sanitize\n" + Sanitizer.getRules().fingerprint() : "raw");
+		digest.update(settings.getBytes(StandardCharsets.UTF_8));
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest())
+			key.append(String.format("%02x", b));
+		return key.toString();
+	}
+
+	/*
+	 * Copies the outputs cached under key into outputDir, named after baseName.
+	 * Returns null on a miss.
+	 */
+	public List<File> get(String key, String baseName, File outputDir) throws IOException {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if (entry == null)
+			return null;
+
+		List<File> outputs = new ArrayList<>();
+		try {
+			for (int i = 0; i < entry.suffixes.size(); ++i) {
+				File output = new File(outputDir, baseName + entry.suffixes.get(i));
+				Files.copy(file(key, i).toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				outputs.add(output);
+			}
+		} catch (IOException e) {
+			// evicted while copying, or the files went missing
+			remove(key);
+			return null;
+		}
+		return outputs;
+	}
+
+	// stores copies of outputs whose names start with baseName
+	public void put(String key, String baseName, List<File> outputs) throws IOException {
+		synchronized (this) {
+			// another upload of the same file may have finished first
+			if (entries.containsKey(key))
+				return;
+		}
+		List<String> suffixes = new ArrayList<>();
+		long bytes = 0;
+		try {
+			for (int i = 0; i < outputs.size(); ++i) {
+				File output = outputs.get(i);
+				String name = output.getName();
+				suffixes.add(name.startsWith(baseName) ? name.substring(baseName.length()) : "-" + name);
+				Files.copy(output.toPath(), file(key, i).toPath(), StandardCopyOption.REPLACE_EXISTING);
+				bytes += output.length();
+			}
+		} catch (IOException e) {
+			deleteFiles(key, outputs.size());
+			throw e;
+		}
+		synchronized (this) {
+			if (entries.containsKey(key))
+				return;
+			entries.put(key, new Entry(bytes, suffixes));
+			totalBytes += bytes;
+			evict();
+			save();
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long totalBytes() {
+		return totalBytes;
+	}
+
+	// writes the index, entries are listed from least to most recently used
+	public synchronized void save() throws IOException {
+		List<String> lines = new ArrayList<>();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			StringBuilder line = new StringBuilder(entry.getKey())
+					.append('\t').append(entry.getValue().bytes);
+			for (String suffix : entry.getValue().suffixes)
+				line.append('\t').append(suffix);
+			lines.add(line.toString());
+		}
+		File temp = new File(dir, INDEX + ".tmp");
+		Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+		try {
+			Files.move(temp.toPath(), new File(dir, INDEX).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), new File(dir, INDEX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void load() throws IOException {
+		File index = new File(dir, INDEX);
+		if (!index.exists())
+			return;
+		for (String line : Files.readAllLines(index.toPath(), StandardCharsets.UTF_8)) {
+			String[] fields = line.split("\t", -1);
+			if (fields.length < 3)
+				continue;
+			List<String> suffixes = new ArrayList<>(Arrays.asList(fields).subList(2, fields.length));
+			boolean complete = true;
+			for (int i = 0; i < suffixes.size(); ++i)
+				complete &= file(fields[0], i).exists();
+			if (!complete) {
+				deleteFiles(fields[0], suffixes.size());
+				continue;
+			}
+			try {
+				long bytes = Long.parseLong(fields[1]);
+				entries.put(fields[0], new Entry(bytes, suffixes));
+				totalBytes += bytes;
+			} catch (NumberFormatException e) {
+				deleteFiles(fields[0], suffixes.size());
+			}
+		}
+		// the limit may have been lowered since the last run
+		evict();
+	}
+
+	private synchronized void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			totalBytes -= entry.bytes;
+			deleteFiles(key, entry.suffixes.size());
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && iterator.hasNext()) {
+			Map.Entry<String, Entry> eldest = iterator.next();
+			iterator.remove();
+			totalBytes -= eldest.getValue().bytes;
+			deleteFiles(eldest.getKey(), eldest.getValue().suffixes.size());
+		}
+	}
+
+	private void deleteFiles(String key, int count) {
+		for (int i = 0; i < count; ++i)
+			file(key, i).delete();
+	}
+
+	private File file(String key, int index) {
+		return new File(dir, key + "-" + index + ".schem");
+	}
+
+}
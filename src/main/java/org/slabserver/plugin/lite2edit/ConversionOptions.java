@@ -0,0 +1,51 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+
+/*
+ * Settings for a single conversion.
+ * Kept free of Bukkit types so the converter can run outside the server.
+ */
+public class ConversionOptions {
+	public boolean sanitize = true;
+	// rules to sanitize with, null uses the ones the plugin was configured with
+	public SanitizeRules sanitizeRules;
+	// block data buffers larger than this are memory-mapped instead of kept on the heap
+	public long scratchMapThreshold = 64L << 20;
+	public File scratchDir = new File(System.getProperty("java.io.tmpdir"));
+	// heap shared with other conversions for block data, buffers that don't fit are memory-mapped
+	public MemoryBudget memoryBudget = MemoryBudget.UNLIMITED;
+	// conversions of schematics with more blocks than this are refused
+	public long maxBlocks = Long.MAX_VALUE;
+	// drop unused palette entries and give the most used ones the shortest ids, see PaletteCompaction
+	public boolean compactPalette;
+	// regions with more blocks than this are split into tiles, each written as its own schematic
+	public long maxTileVolume = Long.MAX_VALUE;
+	// regions of one litematic are encoded and written on this executor, null writes them inline
+	public ExecutorService regionExecutor;
+	public int regionThreads = 1;
+	// output is deflated in blocks on this executor, null deflates on the writing thread
+	public ExecutorService deflateExecutor;
+	public int deflateThreads = 1;
+	public int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	// schematics converted from litematics are kept here by file name instead of being written to the output folder,
+	// regions may be written concurrently so the map has to be thread-safe
+	public Map<String, ByteBuffer> outputBuffers;
+	// Sponge schematic format written, null picks the one WorldEdit writes for the data version
+	public SchematicWriter schematicWriter;
+	// stage timings and sizes are recorded here
+	public Metrics metrics = Metrics.DISABLED;
+
+	public ConversionOptions() {
+
+	}
+
+	public ConversionOptions(boolean sanitize) {
+		this.sanitize = sanitize;
+	}
+
+}
@@ -0,0 +1,29 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * What converting a litematic produced, the schematics written
+ * and the materials of every region, counted while the block states were unpacked.
+ */
+public class ConversionResult {
+	public final List<File> schematics;
+	// materials per region, in the order the regions were read
+	public final Map<String, MaterialList> regions;
+
+	public ConversionResult(List<File> schematics, Map<String, MaterialList> regions) {
+		this.schematics = schematics;
+		this.regions = regions;
+	}
+
+	// materials of all regions together
+	public MaterialList materials() {
+		MaterialList materials = new MaterialList();
+		for (MaterialList region : regions.values())
+			materials.add(region);
+		return materials;
+	}
+
+}
@@ -0,0 +1,135 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Runs uploads on a fixed number of conversion workers.
+ * Jobs beyond that wait in a bounded queue, and each user may only have
+ * a limited number of uploads queued or running at once.
+ */
+public class ConversionScheduler {
+	private final ThreadPoolExecutor executor;
+	private final int perUserLimit;
+	private final ConcurrentHashMap<Long, Integer> inFlight = new ConcurrentHashMap<>();
+	private final LongAdder started = new LongAdder();
+	private final LongAdder totalWaitMillis = new LongAdder();
+	private final AtomicLong maxWaitMillis = new AtomicLong();
+
+	public enum Status {
+		STARTED, QUEUED, QUEUE_FULL, USER_LIMIT
+	}
+
+	public static class Submission {
+		public final Status status;
+		// 1-based position in the queue, only set when queued
+		public final int position;
+
+		Submission(Status status, int position) {
+			this.status = status;
+			this.position = position;
+		}
+	}
+
+	public ConversionScheduler(int threads, int queueSize, int perUserLimit) {
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, queueSize)), Lite2Edit.threadFactory("Lite2Edit Conversion"));
+		this.perUserLimit = perUserLimit;
+	}
+
+	public Submission submit(long userId, Runnable task) {
+		if (!acquire(userId))
+			return new Submission(Status.USER_LIMIT, 0);
+
+		Job job = new Job(userId, task);
+		try {
+			executor.execute(job);
+		} catch (RejectedExecutionException e) {
+			release(userId);
+			return new Submission(Status.QUEUE_FULL, 0);
+		}
+
+		// a worker may already have taken the job
+		int position = 1;
+		for (Runnable queued : executor.getQueue()) {
+			if (queued == job)
+				return new Submission(Status.QUEUED, position);
+			position++;
+		}
+		return new Submission(Status.STARTED, 0);
+	}
+
+	public int queueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int activeCount() {
+		return executor.getActiveCount();
+	}
+
+	public long averageWaitMillis() {
+		long count = started.sum();
+		return count == 0 ? 0 : totalWaitMillis.sum() / count;
+	}
+
+	public long maxWaitMillis() {
+		return maxWaitMillis.get();
+	}
+
+	public String stats() {
+		return "queued: " + queueDepth()
+				+ ", running: " + activeCount()
+				+ ", started: " + started.sum()
+				+ ", average wait: " + averageWaitMillis() + "ms"
+				+ ", max wait: " + maxWaitMillis() + "ms";
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private boolean acquire(long userId) {
+		boolean[] acquired = new boolean[1];
+		inFlight.compute(userId, (id, jobs) -> {
+			int count = jobs == null ? 0 : jobs;
+			if (count >= perUserLimit)
+				return jobs;
+			acquired[0] = true;
+			return count + 1;
+		});
+		return acquired[0];
+	}
+
+	private void release(long userId) {
+		inFlight.computeIfPresent(userId, (id, jobs) -> jobs > 1 ? jobs - 1 : null);
+	}
+
+	private class Job implements Runnable {
+		private final long userId, enqueued = System.currentTimeMillis();
+		private final Runnable task;
+
+		Job(long userId, Runnable task) {
+			this.userId = userId;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			long wait = System.currentTimeMillis() - enqueued;
+			started.increment();
+			totalWaitMillis.add(wait);
+			maxWaitMillis.accumulateAndGet(wait, Math::max);
+			try {
+				task.run();
+			} finally {
+				release(userId);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * Litematic conversions for other plugins, registered with Bukkit's ServicesManager:
+ *
+ *   ConversionService service = Bukkit.getServicesManager().load(ConversionService.class);
+ *   service.convertToBuffers(path, service.rules()).thenAccept(schematics -> ...);
+ *
+ * Conversions run on the plugin's conversion workers, queued together with Discord uploads
+ * and recorded in the same metrics. All callers of the service count as one user of the queue,
+ * so a call is refused with a RejectedExecutionException while the queue is full or
+ * the service already has as many conversions in flight as a user may have.
+ *
+ * Futures complete on a conversion worker, callers schedule any use of the Bukkit API back onto the main thread.
+ * Rules are the sanitize rules to apply, null converts without sanitizing.
+ */
+public class ConversionService {
+	// Discord users have positive ids and the console uses 0
+	private static final long SERVICE_USER = -1;
+
+	private final Lite2Edit plugin;
+	private final Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+
+	ConversionService(Lite2Edit plugin) {
+		this.plugin = plugin;
+	}
+
+	// the rules uploads are sanitized with
+	public SanitizeRules rules() {
+		return Sanitizer.getRules();
+	}
+
+	public CompletableFuture<ConversionResult> convert(Path source, File outputDir, SanitizeRules rules) {
+		return convert(source, outputDir, rules, null);
+	}
+
+	// the stream is read on a conversion worker and closed once it's converted
+	public CompletableFuture<ConversionResult> convert(InputStream source, String name, File outputDir, SanitizeRules rules) {
+		return convert(source, name, outputDir, rules, null);
+	}
+
+	// the buffer's remaining bytes are converted, its position is left as it is
+	public CompletableFuture<ConversionResult> convert(ByteBuffer source, String name, File outputDir, SanitizeRules rules) {
+		return convert(source, name, outputDir, rules, null);
+	}
+
+	// converts to gzipped schematics held in memory, keyed by the names they'd be written with
+	public CompletableFuture<Map<String, ByteBuffer>> convertToBuffers(Path source, SanitizeRules rules) {
+		Map<String, ByteBuffer> buffers = new ConcurrentHashMap<>();
+		return buffers(convert(source, null, rules, buffers), buffers);
+	}
+
+	public CompletableFuture<Map<String, ByteBuffer>> convertToBuffers(InputStream source, String name, SanitizeRules rules) {
+		Map<String, ByteBuffer> buffers = new ConcurrentHashMap<>();
+		return buffers(convert(source, name, null, rules, buffers), buffers);
+	}
+
+	public CompletableFuture<Map<String, ByteBuffer>> convertToBuffers(ByteBuffer source, String name, SanitizeRules rules) {
+		Map<String, ByteBuffer> buffers = new ConcurrentHashMap<>();
+		return buffers(convert(source, name, null, rules, buffers), buffers);
+	}
+
+	// fails conversions that haven't finished, called when the plugin is disabled
+	void close() {
+		closed = true;
+		for (CompletableFuture<?> future : pending)
+			future.completeExceptionally(new CancellationException("Lite2Edit was disabled"));
+	}
+
+	private interface Conversion {
+		ConversionResult run() throws IOException;
+	}
+
+	private CompletableFuture<ConversionResult> submit(long inputBytes, Conversion conversion) {
+		CompletableFuture<ConversionResult> future = new CompletableFuture<>();
+		ConversionScheduler scheduler = plugin.scheduler;
+		if (closed || scheduler == null) {
+			future.completeExceptionally(new RejectedExecutionException("Lite2Edit is not enabled"));
+			return future;
+		}
+		pending.add(future);
+		future.whenComplete((result, e) -> pending.remove(future));
+
+		Metrics metrics = plugin.metrics;
+		ConversionScheduler.Submission submission = scheduler.submit(SERVICE_USER, () -> {
+			if (future.isDone())
+				return;
+			long start = metrics.convert.start();
+			try {
+				ConversionResult result = conversion.run();
+				metrics.conversions.increment();
+				metrics.convert.stop(start);
+				if (inputBytes > 0)
+					metrics.inputBytes.record(inputBytes);
+				future.complete(result);
+			} catch (Throwable e) {
+				// errors still fail the future, or it would stay pending forever
+				metrics.failures.increment();
+				future.completeExceptionally(e);
+				if (e instanceof Error)
+					throw (Error) e;
+			}
+		});
+		switch (submission.status) {
+		case QUEUE_FULL:
+			future.completeExceptionally(new RejectedExecutionException("The conversion queue is full"));
+			break;
+		case USER_LIMIT:
+			future.completeExceptionally(new RejectedExecutionException("Too many conversions in flight"));
+			break;
+		default:
+			break;
+		}
+		return future;
+	}
+
+	private CompletableFuture<ConversionResult> convert(Path source, File outputDir, SanitizeRules rules, Map<String, ByteBuffer> buffers) {
+		return submit(Files.isRegularFile(source) ? source.toFile().length() : 0,
+				() -> Converter.convertLitematic(source.toFile(), outputDir, options(rules, buffers)));
+	}
+
+	private CompletableFuture<ConversionResult> convert(InputStream source, String name, File outputDir, SanitizeRules rules, Map<String, ByteBuffer> buffers) {
+		return submit(0, () -> {
+			try (InputStream in = source) {
+				return Converter.convertLitematic(in, name, outputDir, options(rules, buffers));
+			}
+		});
+	}
+
+	private CompletableFuture<ConversionResult> convert(ByteBuffer source, String name, File outputDir, SanitizeRules rules, Map<String, ByteBuffer> buffers) {
+		ByteBuffer bytes = source.duplicate();
+		return submit(bytes.remaining(),
+				() -> Converter.convertLitematic(new ByteBufferInputStream(bytes), name, outputDir, options(rules, buffers)));
+	}
+
+	private ConversionOptions options(SanitizeRules rules, Map<String, ByteBuffer> buffers) {
+		ConversionOptions options = plugin.conversionOptions();
+		options.sanitize = rules != null;
+		options.sanitizeRules = rules;
+		options.outputBuffers = buffers;
+		return options;
+	}
+
+	// the schematics written to buffers, in the order the converter returned them
+	private static CompletableFuture<Map<String, ByteBuffer>> buffers(CompletableFuture<ConversionResult> conversion, Map<String, ByteBuffer> buffers) {
+		return conversion.thenApply(result -> {
+			Map<String, ByteBuffer> schematics = new LinkedHashMap<>();
+			for (File schematic : result.schematics)
+				schematics.put(schematic.getName(), buffers.get(schematic.getName()));
+			return schematics;
+		});
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) {
+			if (length == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			int n = Math.min(length, buffer.remaining());
+			buffer.get(b, offset, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+}
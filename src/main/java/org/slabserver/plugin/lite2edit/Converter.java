@@ -1,210 +1,1138 @@
 package org.slabserver.plugin.lite2edit;
 
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import se.llbit.nbt.ByteArrayTag;
 import se.llbit.nbt.CompoundTag;
 import se.llbit.nbt.IntArrayTag;
 import se.llbit.nbt.IntTag;
 import se.llbit.nbt.ListTag;
+import se.llbit.nbt.LongTag;
 import se.llbit.nbt.NamedTag;
-import se.llbit.nbt.ShortTag;
-import se.llbit.nbt.SpecificTag;
 import se.llbit.nbt.StringTag;
 import se.llbit.nbt.Tag;
 
 public class Converter {
+	// bump whenever the output for the same input changes, cached conversions are keyed on it
+	public static final int VERSION = 3;
+	private static final int BLOCK_STATE_CHUNK = 1024;
+	// litematic format version written by worldEditToLitematic, the one Litematica for 1.15 writes
+	private static final int LITEMATIC_VERSION = 4;
+	private static final String AIR = "minecraft:air";
 
 	public static List<File> litematicToWorldEdit(File inputFile, File outputDir, boolean sanitize) throws IOException {
-		File tempFile = new File("lite2edit_" + Thread.currentThread().getId() + ".tmp");
-		DataInputStream inStream = new DataInputStream(new GZIPInputStream(new FileInputStream(inputFile)));
-		Tag litematica = CompoundTag.read(inStream).get("");
-		inStream.close();
-		int dataVersion = litematica.get("MinecraftDataVersion").intValue();
-		
-		List<File> files = new ArrayList<>();
-		CompoundTag regions = litematica.get("Regions").asCompound();
-		for (NamedTag regionTag : regions) {
-			CompoundTag region = regionTag.asCompound();
-			ListTag palette = region.get("BlockStatePalette").asList();
-			int bitsPerBlock = Math.max(2, Integer.SIZE - Integer.numberOfLeadingZeros(palette.size() - 1));
-			
-			// Litematica dimensions can be negative.
-			Tag size = region.get("Size");
-			int x = size.get("x").intValue();
-			int y = size.get("y").intValue();
-			int z = size.get("z").intValue();
-			
-			// get offset
-			Tag position = region.get("Position");
-			int offsetx = position.get("x").intValue() + (x < 0 ? x+1 : 0);
-			int offsety = position.get("y").intValue() + (y < 0 ? y+1 : 0);
-			int offsetz = position.get("z").intValue() + (z < 0 ? z+1 : 0);
-			
-			// convert blocks
-			// use a temporary file to avoid OutOfMemoryErrors for large schematics
-			BufferedOutputStream fout = new BufferedOutputStream(new FileOutputStream(tempFile));
-			int numBlocks = Math.abs(x * y * z);
-			long bitmask, bits = 0;
-			int i = 0, bitCount = 0, weSize = 0;
-			for (long num : region.get("BlockStates").longArray()) {
-				int remainingBits = bitCount + 64;
-				if (bitCount != 0) {
-					bitmask = (1 << (bitsPerBlock - bitCount)) - 1;
-					long newBits = (num & bitmask) << bitCount;
-					bits = bits | newBits;
-					num = num >>> (bitsPerBlock - bitCount);
-					remainingBits -= bitsPerBlock;
-					weSize += writeBlock(fout, (short) bits);
-					i++;
-				}
-				
-				bitmask = (1 << bitsPerBlock) - 1;
-				while (remainingBits >= bitsPerBlock) {
-					bits = num & bitmask;
-					num = num >>> bitsPerBlock;
-					remainingBits -= bitsPerBlock;
-					if (i >= numBlocks)
-						break;
-					weSize += writeBlock(fout, (short) bits);
-					i++;
-				}
-				bits = num;
-				bitCount = remainingBits;
-			}
-			fout.close();
-			
-			i = 0;
-			String[] blockPalette = new String[palette.size()];
-			for (SpecificTag blockState : palette) {
-				String name = blockState.get("Name").stringValue();
-				CompoundTag properties = blockState.get("Properties").asCompound();
-				if (!properties.isEmpty()) {
-					List<String> propertyNames = new ArrayList<>();
-					for (NamedTag property : properties) {
-						propertyNames.add(property.name() + "=" + property.unpack().stringValue());
+		return litematicToWorldEdit(inputFile, outputDir, new ConversionOptions(sanitize));
+	}
+
+	public static List<File> litematicToWorldEdit(File inputFile, File outputDir, ConversionOptions options) throws IOException {
+		return convertLitematic(inputFile, outputDir, options).schematics;
+	}
+
+	public static List<File> litematicToWorldEdit(InputStream in, String inputName, File outputDir, ConversionOptions options) throws IOException {
+		return convertLitematic(in, inputName, outputDir, options).schematics;
+	}
+
+	public static ConversionResult convertLitematic(File inputFile, File outputDir, ConversionOptions options) throws IOException {
+		try (InputStream in = new FileInputStream(inputFile)) {
+			return convertLitematic(in, inputFile.getName(), outputDir, options);
+		}
+	}
+
+	/*
+	 * Converts a gzipped litematic read from the given stream, such as a download in progress.
+	 * The input name determines the names of the output files.
+	 */
+	public static ConversionResult convertLitematic(InputStream in, String inputName, File outputDir, ConversionOptions options) throws IOException {
+		// determine outputFileName
+		String baseName = inputName;
+		if (baseName.contains(".")) {
+			baseName = baseName.substring(0, baseName.lastIndexOf('.'));
+		}
+
+		// the litematic is read as a stream, one region at a time,
+		// so only the region being converted is held in memory
+		RegionOutputs outputs = new RegionOutputs(options);
+		Map<String, MaterialList> materials = new LinkedHashMap<>();
+		List<Region> pending = new ArrayList<>();
+		int dataVersion = -1;
+		long start = System.nanoTime(), regionNanos = 0, blocksRead = 0;
+		PooledGZIPInputStream gzip = new PooledGZIPInputStream(in);
+		try (NbtReader reader = new NbtReader(gzip)) {
+			if (!reader.next() || reader.type() != Tag.TAG_COMPOUND)
+				throw new IOException("Not a litematic: " + inputName);
+			while (reader.next()) {
+				switch (reader.name()) {
+				case "MinecraftDataVersion":
+					dataVersion = reader.readInt();
+					break;
+				case "Metadata":
+					// Litematica writes the metadata first, so oversized uploads are refused before any region is read
+					SchematicTooLargeException.check(readDeclaredVolume(reader), options.maxBlocks);
+					break;
+				case "Regions":
+					while (reader.next()) {
+						Region region = readRegion(reader, options, blocksRead);
+						blocksRead += region.numBlocks;
+						materials.put(region.name, region.materials);
+						regionNanos += region.unpackNanos + region.sanitizeNanos;
+						// the data version normally comes first, but nothing guarantees it
+						if (dataVersion < 0)
+							pending.add(region);
+						else
+							outputs.submit(region, dataVersion, baseName, outputDir);
+					}
+					break;
+				default:
+					reader.skip();
+					break;
+				}
+			}
+			for (Region region : pending) {
+				outputs.submit(region, dataVersion, baseName, outputDir);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			outputs.cancel();
+			for (Region region : pending) {
+				region.discard();
+			}
+			throw e;
+		}
+		// parsing is what's left of reading once the other stages are taken out
+		long inflateNanos = gzip.inflateNanos();
+		options.metrics.inflate.record(inflateNanos);
+		options.metrics.parse.record(System.nanoTime() - start - inflateNanos - regionNanos - outputs.submitNanos);
+		List<File> files = outputs.await();
+
+		// the region count is only known once the stream is read,
+		// single region litematics don't get a region suffix
+		if (files.size() == 1) {
+			File file = files.get(0);
+			String name = baseName.replaceAll("[^\\w-]+", "_") + ".schem";
+			if (options.outputBuffers != null) {
+				options.outputBuffers.put(name, options.outputBuffers.remove(file.getName()));
+				files.set(0, new File(name));
+			}
+			else {
+				File renamed = new File(outputDir + "/" + name);
+				Files.move(file.toPath(), renamed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				files.set(0, renamed);
+			}
+		}
+		return new ConversionResult(files, materials);
+	}
+
+	private static Region readRegion(NbtReader reader, ConversionOptions options, long blocksBefore) throws IOException {
+		Region region = new Region(reader.name(), blocksBefore);
+		try {
+			return readRegion(reader, region, options);
+		} catch (IOException | RuntimeException e) {
+			region.discard();
+			throw e;
+		}
+	}
+
+	private static Region readRegion(NbtReader reader, Region region, ConversionOptions options) throws IOException {
+		// rules are picked up once so a reload can't change them halfway through a region
+		if (options.sanitize)
+			region.rules = options.sanitizeRules != null ? options.sanitizeRules : Sanitizer.getRules();
+		// block states read before the palette or size, as the big-endian bytes of the long array
+		ScratchBuffer blockStates = null;
+		int blockStateWords = 0;
+		while (reader.next()) {
+			switch (reader.name()) {
+			case "BlockStatePalette":
+				region.palette = readPalette(reader);
+				break;
+			case "Size":
+				region.size = readVector(reader);
+				break;
+			case "Position":
+				region.position = readVector(reader);
+				break;
+			case "TileEntities":
+				region.tileEntities = readTileEntities(reader, region);
+				break;
+			case "BlockStates":
+				// block states can only be decoded once the palette and size are known,
+				// Litematica writes them first so the packed array is kept until then
+				if (region.palette != null && region.size != null) {
+					region.beginBlocks(options);
+					long[] chunk = new long[BLOCK_STATE_CHUNK];
+					int remaining = reader.beginArray();
+					while (remaining > 0) {
+						int n = Math.min(remaining, chunk.length);
+						reader.readLongs(chunk, 0, n);
+						region.unpack(chunk, n);
+						remaining -= n;
 					}
-					name += "[" + String.join(",", propertyNames) + "]";
-				}
-				blockPalette[i++] = name;
-			}
-			
-			/*
-			 * Convert to WorldEdit format now
-			 */
-			// read block data
-			byte[] weBlocks = new byte[weSize];
-			FileInputStream stream = new FileInputStream(tempFile);
-			int r = stream.read(weBlocks), len = 0;
-			// keep reading if we didn't get the whole file in one go
-			while (r != -1 && len + r != weSize) {
-				len += r;
-				r = stream.read(weBlocks, len, weSize - len);
-			}
-			stream.close();
-			
-			// Convert palette
-			CompoundTag wePalette = new CompoundTag();
-			for (i = 0; i < blockPalette.length; ++i) {
-				wePalette.add(blockPalette[i], new IntTag(i));
-			}
-			
-			// Copy tile entity data
-			List<CompoundTag> weTileEntities = new ArrayList<>();
-			List<String> skip = Arrays.asList("x", "y", "z", "id");
-			for (SpecificTag tileEntity : region.get("TileEntities").asList()) {
-				CompoundTag liteTileEntity = tileEntity.asCompound();
-				CompoundTag weTileEntity = new CompoundTag();
-				
-				// Litematica uses integer "x", "y", and "z" tags
-				// WorldEdit uses one integer array "Pos" tag
-				int tx = liteTileEntity.get("x").intValue();
-				int ty = liteTileEntity.get("y").intValue();
-				int tz = liteTileEntity.get("z").intValue();
-				weTileEntity.add("Pos", new IntArrayTag(new int[] {tx, ty, tz}));
-				
-				// Litematica uses a lowercase "id"
-				// WorldEdit uses a capitalized "Id"
-				String tid = liteTileEntity.get("id").stringValue();
-				weTileEntity.add("Id", new StringTag(tid));
-				
-				for (NamedTag tileEntityTag : liteTileEntity) {
-					String name = tileEntityTag.name();
-					if (!skip.contains(name))
-						weTileEntity.add(tileEntityTag);
-				}
-				weTileEntities.add(weTileEntity);
-			}
-			
-			// metadata
-			CompoundTag metadata = new CompoundTag();
-			metadata.add("WEOffsetX", new IntTag(offsetx));
-			metadata.add("WEOffsetY", new IntTag(offsety));
-			metadata.add("WEOffsetZ", new IntTag(offsetz));
-			
-			CompoundTag worldEdit = new CompoundTag();
-			worldEdit.add(new NamedTag("Metadata", metadata));
-			worldEdit.add(new NamedTag("Palette", wePalette));
-			worldEdit.add(new NamedTag("BlockEntities", new ListTag(Tag.TAG_COMPOUND, weTileEntities)));
-			worldEdit.add(new NamedTag("DataVersion", new IntTag(dataVersion)));
-			worldEdit.add(new NamedTag("Height", new ShortTag((short) Math.abs(y))));
-			worldEdit.add(new NamedTag("Length", new ShortTag((short) Math.abs(z))));
-			worldEdit.add(new NamedTag("PaletteMax", new IntTag(wePalette.size())));
-			worldEdit.add(new NamedTag("Version", new IntTag(2)));
-			worldEdit.add(new NamedTag("Width", new ShortTag((short) Math.abs(x))));
-			worldEdit.add(new NamedTag("BlockData", new ByteArrayTag(weBlocks)));
-			worldEdit.add(new NamedTag("Offset", new IntArrayTag(new int[3])));
-			
-			CompoundTag worldEditRoot = new CompoundTag();
-			worldEditRoot.add("Schematic", worldEdit);
-			if (sanitize)
-				worldEditRoot = Sanitizer.sanitize(worldEditRoot);
-			
-			// determine outputFileName
-			String outputFileName = inputFile.getName();
-			if (outputFileName.contains(".")) {
-				outputFileName = outputFileName.substring(0, outputFileName.lastIndexOf('.'));
-			}
-			if (regions.size() > 1) {
-				outputFileName += "-" + regionTag.name();
-			}
-			outputFileName = outputFileName.replaceAll("[^\\w-]+", "_") + ".schem";
-			
+					region.endBlocks(options);
+				}
+				else {
+					// kept in a scratch buffer instead of a long array, so its size comes out of the memory budget
+					blockStateWords = reader.beginArray();
+					// every long holds at least one block
+					if (region.blocksBefore + blockStateWords > options.maxBlocks)
+						throw new SchematicTooLargeException("it has more than " + options.maxBlocks + " blocks");
+					if (blockStates != null)
+						blockStates.close();
+					blockStates = region.spool = ScratchBuffer.allocate((long) blockStateWords * Long.BYTES, options);
+					byte[] chunk = ResourcePool.takeBuffer();
+					for (long remaining = (long) blockStateWords * Long.BYTES; remaining > 0; ) {
+						int n = (int) Math.min(remaining, chunk.length);
+						reader.readBytes(chunk, 0, n);
+						blockStates.write(chunk, 0, n);
+						remaining -= n;
+					}
+					ResourcePool.giveBuffer(chunk);
+				}
+				break;
+			default:
+				reader.skip();
+				break;
+			}
+		}
+		if (region.palette == null || region.size == null || region.position == null)
+			throw new IOException("Incomplete litematic region: " + region.name);
+		if (region.tileEntities == null)
+			region.tileEntities = new ArrayList<>();
+		if (region.blocks == null) {
+			region.beginBlocks(options);
+			if (blockStates != null) {
+				byte[] bytes = ResourcePool.takeBuffer();
+				LongBuffer longs = ByteBuffer.wrap(bytes).asLongBuffer();
+				long[] chunk = new long[bytes.length / Long.BYTES];
+				for (int word = 0; word < blockStateWords; ) {
+					int n = Math.min(blockStateWords - word, chunk.length);
+					blockStates.read(word * Long.BYTES, bytes, 0, n * Long.BYTES);
+					longs.position(0);
+					longs.get(chunk, 0, n);
+					region.unpack(chunk, n);
+					word += n;
+				}
+				ResourcePool.giveBuffer(bytes);
+				region.closeSpool();
+			}
+			region.endBlocks(options);
+		}
+		options.metrics.unpack.record(region.unpackNanos);
+		if (region.rules != null)
+			options.metrics.sanitize.record(region.sanitizeNanos);
+		if (region.sanitized) {
+			Sanitizer.logSanitizing();
+			options.metrics.sanitized.increment();
+		}
+		return region;
+	}
+
+	// the larger of the declared total volume and enclosing size
+	private static long readDeclaredVolume(NbtReader reader) throws IOException {
+		if (reader.type() != Tag.TAG_COMPOUND) {
+			reader.skip();
+			return 0;
+		}
+		long volume = 0;
+		while (reader.next()) {
+			switch (reader.name()) {
+			case "TotalVolume":
+				volume = Math.max(volume, Math.abs((long) reader.readInt()));
+				break;
+			case "EnclosingSize":
+				if (reader.type() == Tag.TAG_COMPOUND)
+					volume = Math.max(volume, readVolume(reader));
+				else
+					reader.skip();
+				break;
+			default:
+				reader.skip();
+				break;
+			}
+		}
+		return volume;
+	}
+
+	// blocks in a Size or EnclosingSize compound, computed in longs and refused if even those overflow
+	private static long readVolume(NbtReader reader) throws IOException {
+		long volume = 1;
+		while (reader.next()) {
+			switch (reader.name()) {
+			case "x":
+			case "y":
+			case "z":
+				volume = SchematicTooLargeException.multiply(volume, reader.readInt());
+				break;
+			default:
+				reader.skip();
+				break;
+			}
+		}
+		return volume;
+	}
+
+	private static String[] readPalette(NbtReader reader) throws IOException {
+		String[] blockPalette = new String[reader.beginList()];
+		for (int i = 0; i < blockPalette.length; ++i) {
+			String name = "";
+			List<String> propertyNames = new ArrayList<>();
+			while (reader.next()) {
+				if (reader.name().equals("Name")) {
+					name = reader.readString();
+				}
+				else if (reader.name().equals("Properties")) {
+					while (reader.next()) {
+						propertyNames.add(reader.name() + "=" + reader.readString());
+					}
+				}
+				else {
+					reader.skip();
+				}
+			}
+			if (!propertyNames.isEmpty()) {
+				name += "[" + String.join(",", propertyNames) + "]";
+			}
+			blockPalette[i] = name;
+		}
+		return blockPalette;
+	}
+
+	private static int[] readVector(NbtReader reader) throws IOException {
+		int[] vector = new int[3];
+		while (reader.next()) {
+			switch (reader.name()) {
+			case "x":
+				vector[0] = reader.readInt();
+				break;
+			case "y":
+				vector[1] = reader.readInt();
+				break;
+			case "z":
+				vector[2] = reader.readInt();
+				break;
+			default:
+				reader.skip();
+				break;
+			}
+		}
+		return vector;
+	}
+
+	private static List<CompoundTag> readTileEntities(NbtReader reader, Region region) throws IOException {
+		// Copy tile entity data
+		List<CompoundTag> weTileEntities = new ArrayList<>();
+		List<String> skip = Arrays.asList("x", "y", "z", "id");
+		int count = reader.beginList();
+		for (int i = 0; i < count; ++i) {
+			if (reader.listType() != Tag.TAG_COMPOUND) {
+				reader.skipElement();
+				continue;
+			}
+			CompoundTag liteTileEntity = reader.readCompound();
+			CompoundTag weTileEntity = new CompoundTag();
+
+			// Litematica uses integer "x", "y", and "z" tags
+			// WorldEdit uses one integer array "Pos" tag
+			int tx = liteTileEntity.get("x").intValue();
+			int ty = liteTileEntity.get("y").intValue();
+			int tz = liteTileEntity.get("z").intValue();
+			weTileEntity.add("Pos", new IntArrayTag(new int[] {tx, ty, tz}));
+
+			// Litematica uses a lowercase "id"
+			// WorldEdit uses a capitalized "Id"
+			String tid = liteTileEntity.get("id").stringValue();
+			weTileEntity.add("Id", new StringTag(tid));
+
+			for (NamedTag tileEntityTag : liteTileEntity) {
+				String name = tileEntityTag.name();
+				if (!skip.contains(name))
+					weTileEntity.add(tileEntityTag);
+			}
+
+			// sanitize while the tile entity is still at hand
+			if (region.rules != null) {
+				long start = System.nanoTime();
+				CompoundTag sanitized = region.rules.sanitizeTileEntity(weTileEntity);
+				region.sanitizeNanos += System.nanoTime() - start;
+				if (sanitized != weTileEntity)
+					region.sanitized = true;
+				if (sanitized == null)
+					continue;
+				weTileEntity = sanitized;
+			}
+			weTileEntities.add(weTileEntity);
+		}
+		return weTileEntities;
+	}
+
+	private static File writeRegion(Region region, int dataVersion, String baseName, File outputDir, ConversionOptions options) throws IOException {
+		if (!region.claim())
+			throw new InterruptedIOException("Conversion cancelled");
+		try {
+			// tiles only use part of their region's palette
+			if (region.tiled && options.compactPalette)
+				region.compactTile(options);
+			return writeSchematic(region, dataVersion, baseName, outputDir, options);
+		} finally {
+			region.closeBlocks();
+		}
+	}
+
+	private static File writeSchematic(Region region, int dataVersion, String baseName, File outputDir, ConversionOptions options) throws IOException {
+		// Litematica dimensions can be negative.
+		int x = region.size[0];
+		int y = region.size[1];
+		int z = region.size[2];
+
+		// get offset
+		int offsetx = region.position[0] + (x < 0 ? x+1 : 0);
+		int offsety = region.position[1] + (y < 0 ? y+1 : 0);
+		int offsetz = region.position[2] + (z < 0 ? z+1 : 0);
+
+		String outputFileName = baseName + "-" + region.name;
+		outputFileName = outputFileName.replaceAll("[^\\w-]+", "_") + ".schem";
+
+		File outputFile;
+		OutputStream out;
+		if (options.outputBuffers != null) {
+			// kept in memory, the file only carries the name
+			outputFile = new File(outputFileName);
+			out = new BufferOutputStream();
+		}
+		else {
 			// make sure directory exists, and write to the provided path
 			Files.createDirectories(outputDir.toPath());
-			File outputFile = new File(outputDir + "/" + outputFileName);
-			DataOutputStream outStream = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(outputFile)));
-			worldEditRoot.write(outStream);
-			outStream.close();
-			files.add(outputFile);
+			outputFile = new File(outputDir + "/" + outputFileName);
+			// an earlier output of the same name may be hard linked into the schematic folders
+			Files.deleteIfExists(outputFile.toPath());
+			out = new FileOutputStream(outputFile);
+		}
+		// both gzip streams buffer their input, so there's no BufferedOutputStream in between
+		OutputStream gzip = gzip(out, options);
+		SchematicWriter writer = options.schematicWriter != null ? options.schematicWriter : SchematicWriter.forVersion(0, dataVersion);
+		try (DataOutputStream outStream = new DataOutputStream(gzip)) {
+			writer.write(outStream, dataVersion, new int[] {Math.abs(x), Math.abs(y), Math.abs(z)},
+					new int[] {offsetx, offsety, offsetz}, region.palette, region.tileEntities, region.blocks);
+		}
+		options.metrics.deflate.record(deflateNanos(gzip));
+		if (out instanceof BufferOutputStream)
+			options.outputBuffers.put(outputFileName, ((BufferOutputStream) out).toByteBuffer());
+		return outputFile;
+	}
+
+	static OutputStream gzip(OutputStream out, ConversionOptions options) throws IOException {
+		if (options.deflateExecutor != null)
+			return new ParallelGZIPOutputStream(out, options.deflateExecutor, options.compressionLevel, options.deflateThreads);
+		return new PooledGZIPOutputStream(out, options.compressionLevel);
+	}
+
+	static long deflateNanos(OutputStream gzip) {
+		if (gzip instanceof ParallelGZIPOutputStream)
+			return ((ParallelGZIPOutputStream) gzip).deflateNanos();
+		return ((PooledGZIPOutputStream) gzip).deflateNanos();
+	}
+
+	public static File worldEditToLitematic(File inputFile, File outputDir, ConversionOptions options) throws IOException {
+		try (InputStream in = new FileInputStream(inputFile)) {
+			return worldEditToLitematic(in, inputFile.getName(), outputDir, options);
+		}
+	}
+
+	/*
+	 * Converts a gzipped Sponge v2 or v3 schematic into a single region litematic.
+	 * Block data is packed as it is read when the palette and size come first,
+	 * otherwise the varints are kept in a scratch buffer and packed once they are known.
+	 */
+	public static File worldEditToLitematic(InputStream in, String inputName, File outputDir, ConversionOptions options) throws IOException {
+		String baseName = inputName;
+		if (baseName.contains(".")) {
+			baseName = baseName.substring(0, baseName.lastIndexOf('.'));
+		}
+
+		Schematic schematic = new Schematic();
+		try {
+			PooledGZIPInputStream gzip = new PooledGZIPInputStream(in);
+			try (NbtReader reader = new NbtReader(gzip)) {
+				if (!reader.next() || reader.type() != Tag.TAG_COMPOUND)
+					throw new IOException("Not a schematic: " + inputName);
+				readSchematic(reader, schematic, options);
+			}
+			options.metrics.inflate.record(gzip.inflateNanos());
+			if (schematic.palette == null || schematic.size == null)
+				throw new IOException("Incomplete schematic: " + inputName);
+			if (schematic.packer == null) {
+				schematic.beginBlocks(options);
+				if (schematic.varints != null)
+					schematic.varints.writeTo(schematic.packer);
+			}
+			schematic.packer.finish();
+			return writeLitematic(schematic, baseName, outputDir, options);
+		} finally {
+			schematic.close();
 		}
-		
-		tempFile.delete();
-		return files;
 	}
 
-	private static int writeBlock(BufferedOutputStream fout, short block) throws IOException {
-		int b = block >>> 7;
-		if (b == 0) {
-			fout.write(block);
-			return 1;
+	private static void readSchematic(NbtReader reader, Schematic schematic, ConversionOptions options) throws IOException {
+		while (reader.next()) {
+			switch (reader.name()) {
+			case "Schematic":
+				// Sponge v3 nests the schematic in an unnamed root
+				if (reader.type() == Tag.TAG_COMPOUND)
+					readSchematic(reader, schematic, options);
+				else
+					reader.skip();
+				break;
+			case "Blocks":
+				// Sponge v3 keeps the palette, block data and block entities together
+				if (reader.type() == Tag.TAG_COMPOUND)
+					readSchematic(reader, schematic, options);
+				else
+					reader.skip();
+				break;
+			case "Version":
+				schematic.version = reader.readInt();
+				break;
+			case "Offset":
+				schematic.offset = reader.readIntArray();
+				break;
+			case "DataVersion":
+				schematic.dataVersion = reader.readInt();
+				break;
+			case "Width":
+				schematic.dimension(0, reader.readInt());
+				break;
+			case "Height":
+				schematic.dimension(1, reader.readInt());
+				break;
+			case "Length":
+				schematic.dimension(2, reader.readInt());
+				break;
+			case "Metadata":
+				readOffset(reader, schematic);
+				break;
+			case "Palette":
+				readSpongePalette(reader, schematic);
+				break;
+			case "BlockData":
+			case "Data":
+				if (reader.type() != Tag.TAG_BYTE_ARRAY) {
+					reader.skip();
+					break;
+				}
+				readBlockData(reader, schematic, options);
+				break;
+			case "BlockEntities":
+				if (reader.type() != Tag.TAG_LIST) {
+					reader.skip();
+					break;
+				}
+				schematic.tileEntities = readBlockEntities(reader);
+				break;
+			default:
+				reader.skip();
+				break;
+			}
+		}
+	}
+
+	// the offset v2 schematics keep the region position in, v3 ones keep it in "Offset"
+	private static void readOffset(NbtReader reader, Schematic schematic) throws IOException {
+		if (reader.type() != Tag.TAG_COMPOUND) {
+			reader.skip();
+			return;
+		}
+		while (reader.next()) {
+			switch (reader.name()) {
+			case "WEOffsetX":
+				schematic.weOffset[0] = reader.readInt();
+				break;
+			case "WEOffsetY":
+				schematic.weOffset[1] = reader.readInt();
+				break;
+			case "WEOffsetZ":
+				schematic.weOffset[2] = reader.readInt();
+				break;
+			default:
+				reader.skip();
+				break;
+			}
+		}
+	}
+
+	/*
+	 * Litematica expects air at index 0, the other entries follow in the order of their WorldEdit ids.
+	 * WorldEdit ids don't have to be contiguous, so they're mapped to palette indices.
+	 */
+	private static void readSpongePalette(NbtReader reader, Schematic schematic) throws IOException {
+		if (reader.type() != Tag.TAG_COMPOUND) {
+			reader.skip();
+			return;
+		}
+		List<String> names = new ArrayList<>();
+		List<Integer> ids = new ArrayList<>();
+		int maxId = -1;
+		while (reader.next()) {
+			int id = reader.readInt();
+			names.add(reader.name());
+			ids.add(id);
+			maxId = Math.max(maxId, id);
+		}
+		String[] byId = new String[maxId + 1];
+		for (int i = 0; i < names.size(); ++i) {
+			if (ids.get(i) >= 0)
+				byId[ids.get(i)] = names.get(i);
+		}
+		List<String> palette = new ArrayList<>();
+		palette.add(AIR);
+		int[] remap = new int[byId.length];
+		for (int id = 0; id < byId.length; ++id) {
+			if (byId[id] == null || byId[id].equals(AIR))
+				continue;
+			remap[id] = palette.size();
+			palette.add(byId[id]);
+		}
+		schematic.palette = palette.toArray(new String[0]);
+		schematic.remap = remap;
+	}
+
+	private static void readBlockData(NbtReader reader, Schematic schematic, ConversionOptions options) throws IOException {
+		int remaining = reader.beginArray();
+		OutputStream blocks;
+		if (schematic.palette != null && schematic.size != null) {
+			schematic.beginBlocks(options);
+			blocks = schematic.packer;
 		}
 		else {
-			fout.write(block | 128);
-			fout.write(b);
-			return 2;
+			schematic.varints = ScratchBuffer.allocate(remaining, options);
+			blocks = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					schematic.varints.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int offset, int length) throws IOException {
+					schematic.varints.write(b, offset, length);
+				}
+			};
+		}
+		byte[] chunk = ResourcePool.takeBuffer();
+		try {
+			while (remaining > 0) {
+				int n = Math.min(remaining, chunk.length);
+				reader.readBytes(chunk, 0, n);
+				blocks.write(chunk, 0, n);
+				remaining -= n;
+			}
+		} finally {
+			ResourcePool.giveBuffer(chunk);
+		}
+	}
+
+	private static List<CompoundTag> readBlockEntities(NbtReader reader) throws IOException {
+		List<CompoundTag> liteTileEntities = new ArrayList<>();
+		int count = reader.beginList();
+		for (int i = 0; i < count; ++i) {
+			if (reader.listType() != Tag.TAG_COMPOUND) {
+				reader.skipElement();
+				continue;
+			}
+			CompoundTag weTileEntity = reader.readCompound();
+			CompoundTag liteTileEntity = new CompoundTag();
+
+			// the reverse of readTileEntities, "Pos" back to "x", "y" and "z"
+			int[] pos = weTileEntity.get("Pos").intArray();
+			if (pos.length < 3)
+				continue;
+			liteTileEntity.add("x", new IntTag(pos[0]));
+			liteTileEntity.add("y", new IntTag(pos[1]));
+			liteTileEntity.add("z", new IntTag(pos[2]));
+
+			// and "Id" back to "id"
+			String tid = weTileEntity.get("Id").stringValue();
+			liteTileEntity.add("id", new StringTag(tid));
+
+			// Sponge v3 keeps the tile entity's own tags in "Data", v2 next to "Pos" and "Id"
+			Tag data = weTileEntity.get("Data");
+			CompoundTag tags = data.isCompoundTag() ? data.asCompound() : weTileEntity;
+			for (NamedTag tileEntityTag : tags) {
+				String name = tileEntityTag.name();
+				if (tags == weTileEntity && (name.equals("Pos") || name.equals("Id")))
+					continue;
+				if (!name.equals("x") && !name.equals("y") && !name.equals("z") && !name.equals("id"))
+					liteTileEntity.add(tileEntityTag);
+			}
+			liteTileEntities.add(liteTileEntity);
+		}
+		return liteTileEntities;
+	}
+
+	private static File writeLitematic(Schematic schematic, String baseName, File outputDir, ConversionOptions options) throws IOException {
+		int x = schematic.size[0];
+		int y = schematic.size[1];
+		int z = schematic.size[2];
+		// three unsigned shorts can multiply past an int, litematics count the volume in one
+		long volume = SchematicTooLargeException.volume(x, y, z);
+		SchematicTooLargeException.check(volume, Integer.MAX_VALUE);
+
+		ListTag palette = new ListTag(Tag.TAG_COMPOUND, new ArrayList<>());
+		for (String block : schematic.palette) {
+			palette.add(blockState(block));
+		}
+
+		CompoundTag metadata = new CompoundTag();
+		long now = System.currentTimeMillis();
+		metadata.add("Name", new StringTag(baseName));
+		metadata.add("Author", new StringTag(""));
+		metadata.add("Description", new StringTag(""));
+		metadata.add("RegionCount", new IntTag(1));
+		metadata.add("TotalVolume", new IntTag((int) volume));
+		metadata.add("TotalBlocks", new IntTag(schematic.packer.nonZeroBlocks()));
+		metadata.add("TimeCreated", new LongTag(now));
+		metadata.add("TimeModified", new LongTag(now));
+		metadata.add("EnclosingSize", liteVector(x, y, z));
+
+		CompoundTag region = new CompoundTag();
+		int[] position = schematic.position();
+		region.add("Position", liteVector(position[0], position[1], position[2]));
+		region.add("Size", liteVector(x, y, z));
+		region.add("BlockStatePalette", palette);
+		region.add("TileEntities", new ListTag(Tag.TAG_COMPOUND, schematic.tileEntities));
+		region.add("Entities", new ListTag(Tag.TAG_COMPOUND, new ArrayList<>()));
+		region.add("PendingBlockTicks", new ListTag(Tag.TAG_COMPOUND, new ArrayList<>()));
+		region.add("PendingFluidTicks", new ListTag(Tag.TAG_COMPOUND, new ArrayList<>()));
+
+		Files.createDirectories(outputDir.toPath());
+		File outputFile = new File(outputDir + "/" + baseName.replaceAll("[^\\w-]+", "_") + ".litematic");
+		Files.deleteIfExists(outputFile.toPath());
+		OutputStream gzip = gzip(new FileOutputStream(outputFile), options);
+		try (DataOutputStream outStream = new DataOutputStream(gzip)) {
+			outStream.writeByte(Tag.TAG_COMPOUND);
+			outStream.writeUTF("");
+			new NamedTag("Metadata", metadata).write(outStream);
+			new NamedTag("MinecraftDataVersion", new IntTag(schematic.dataVersion)).write(outStream);
+			new NamedTag("Version", new IntTag(LITEMATIC_VERSION)).write(outStream);
+			outStream.writeByte(Tag.TAG_COMPOUND);
+			outStream.writeUTF("Regions");
+			outStream.writeByte(Tag.TAG_COMPOUND);
+			outStream.writeUTF(baseName);
+			for (NamedTag tag : region) {
+				tag.write(outStream);
+			}
+			// packed block states are written straight from the scratch buffer
+			outStream.writeByte(Tag.TAG_LONG_ARRAY);
+			outStream.writeUTF("BlockStates");
+			outStream.writeInt(schematic.packer.words());
+			schematic.blocks.writeTo(outStream);
+			// region, regions and root
+			outStream.writeByte(Tag.TAG_END);
+			outStream.writeByte(Tag.TAG_END);
+			outStream.writeByte(Tag.TAG_END);
+		}
+		options.metrics.deflate.record(deflateNanos(gzip));
+		return outputFile;
+	}
+
+	// splits minecraft:chest[facing=north,type=single] into its name and properties
+	private static CompoundTag blockState(String block) {
+		CompoundTag state = new CompoundTag();
+		int bracket = block.indexOf('[');
+		if (bracket < 0 || !block.endsWith("]")) {
+			state.add("Name", new StringTag(block));
+			return state;
+		}
+		state.add("Name", new StringTag(block.substring(0, bracket)));
+		CompoundTag properties = new CompoundTag();
+		for (String property : block.substring(bracket + 1, block.length() - 1).split(",")) {
+			int equals = property.indexOf('=');
+			if (equals > 0)
+				properties.add(property.substring(0, equals), new StringTag(property.substring(equals + 1)));
+		}
+		state.add("Properties", properties);
+		return state;
+	}
+
+	private static CompoundTag liteVector(int x, int y, int z) {
+		CompoundTag vector = new CompoundTag();
+		vector.add("x", new IntTag(x));
+		vector.add("y", new IntTag(y));
+		vector.add("z", new IntTag(z));
+		return vector;
+	}
+
+	// hands out the written bytes without copying them
+	private static class BufferOutputStream extends ByteArrayOutputStream {
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count).slice();
+		}
+	}
+
+	/*
+	 * Encodes and writes regions on the region executor while the next region is read.
+	 * At most one region per worker is in flight, which bounds the block data held in memory.
+	 */
+	private static class RegionOutputs {
+		private final ConversionOptions options;
+		private final Semaphore inFlight;
+		private final List<Future<File>> futures = new ArrayList<>();
+		private final List<Region> regions = new ArrayList<>();
+		// time the reading thread spent writing inline or waiting for a free worker
+		long submitNanos;
+
+		RegionOutputs(ConversionOptions options) {
+			this.options = options;
+			this.inFlight = new Semaphore(Math.max(1, options.regionThreads));
+		}
+
+		void submit(Region region, int dataVersion, String baseName, File outputDir) throws IOException {
+			long start = System.nanoTime();
+			try {
+				Tiling tiling = Tiling.plan(region.dimensions(), options.maxTileVolume);
+				if (!tiling.isTiled()) {
+					write(region, dataVersion, baseName, outputDir);
+					return;
+				}
+				// every tile is written on its own, so tiles of one region are encoded concurrently
+				regions.add(region);
+				region.split(tiling, options, tile -> write(tile, dataVersion, baseName, outputDir));
+			} finally {
+				submitNanos += System.nanoTime() - start;
+			}
+		}
+
+		private void write(Region region, int dataVersion, String baseName, File outputDir) throws IOException {
+			regions.add(region);
+			if (options.regionExecutor == null) {
+				futures.add(CompletableFuture.completedFuture(writeRegion(region, dataVersion, baseName, outputDir, options)));
+				return;
+			}
+			try {
+				inFlight.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			try {
+				futures.add(options.regionExecutor.submit(() -> {
+					try {
+						return writeRegion(region, dataVersion, baseName, outputDir, options);
+					} finally {
+						inFlight.release();
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				inFlight.release();
+				throw new IOException("Region executor is shut down", e);
+			}
+		}
+
+		// waits for all regions, in the order they were read
+		List<File> await() throws IOException {
+			List<File> files = new ArrayList<>();
+			try {
+				for (Future<File> future : futures) {
+					files.add(future.get());
+				}
+			} catch (InterruptedException e) {
+				cancel();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				cancel();
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new IOException(cause);
+			}
+			return files;
+		}
+
+		void cancel() {
+			for (Future<File> future : futures) {
+				future.cancel(true);
+			}
+			// regions whose writer never started still hold their block data
+			for (Region region : regions) {
+				region.discard();
+			}
+		}
+	}
+
+	private interface TileWriter {
+		void write(Region tile) throws IOException;
+	}
+
+	private static class Region {
+		final String name;
+		// blocks in the regions read before this one
+		final long blocksBefore;
+		String[] palette;
+		int[] size, position;
+		int numBlocks, bytesPerBlock;
+		List<CompoundTag> tileEntities;
+		final MaterialList materials = new MaterialList();
+		SanitizeRules rules;
+		boolean sanitized, tiled;
+		BlockStateUnpacker unpacker;
+		ScratchBuffer blocks;
+		// block states waiting for the palette and size
+		ScratchBuffer spool;
+		long unpackNanos, sanitizeNanos;
+		// the block data is closed by the region's writer, or discarded if the conversion fails first
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		Region(String name, long blocksBefore) {
+			this.name = name;
+			this.blocksBefore = blocksBefore;
+		}
+
+		void beginBlocks(ConversionOptions options) throws IOException {
+			// the product of three ints can overflow an int, and of crafted ones a long
+			long volume = SchematicTooLargeException.volume(size[0], size[1], size[2]);
+			SchematicTooLargeException.check(volume, options.maxBlocks);
+			// WorldEdit block data is a single byte array
+			SchematicTooLargeException.check(volume, Integer.MAX_VALUE - 8);
+			SchematicTooLargeException.check(blocksBefore + volume, options.maxBlocks);
+			numBlocks = (int) volume;
+			bytesPerBlock = (BlockStateUnpacker.bitsPerBlock(palette.length) + 6) / 7;
+			options.metrics.blocks.record(numBlocks);
+			options.metrics.paletteSize.record(palette.length);
+			// blocks matched by the sanitize rules are replaced as the indices are unpacked
+			int[] remap = null;
+			if (rules != null) {
+				long start = System.nanoTime();
+				remap = rules.remapPalette(palette);
+				sanitizeNanos += System.nanoTime() - start;
+				sanitized |= remap != null;
+			}
+			unpacker = new BlockStateUnpacker(BlockStateUnpacker.bitsPerBlock(palette.length), numBlocks, remap);
+			// every block takes one varint byte, or two once the palette passes 128 entries
+			blocks = ScratchBuffer.allocate((long) numBlocks * bytesPerBlock, options);
+		}
+
+		void unpack(long[] blockStates, int length) throws IOException {
+			long start = System.nanoTime();
+			unpacker.unpack(blockStates, 0, length, blocks);
+			unpackNanos += System.nanoTime() - start;
+		}
+
+		void endBlocks(ConversionOptions options) throws IOException {
+			int[] histogram = unpacker.histogram();
+			materials.add(palette, histogram);
+			if (options.compactPalette) {
+				long start = System.nanoTime();
+				PaletteCompaction compaction = PaletteCompaction.of(palette, histogram);
+				if (compaction != null) {
+					blocks = compaction.rewrite(blocks, options);
+					palette = compaction.palette;
+				}
+				unpackNanos += System.nanoTime() - start;
+			}
+			unpacker = null;
+		}
+
+		void compactTile(ConversionOptions options) throws IOException {
+			PaletteCompaction compaction = PaletteCompaction.of(palette, PaletteCompaction.histogram(blocks, palette.length));
+			if (compaction != null) {
+				blocks = compaction.rewrite(blocks, options);
+				palette = compaction.palette;
+			}
+		}
+
+		boolean claim() {
+			return claimed.compareAndSet(false, true);
+		}
+
+		int[] dimensions() {
+			return new int[] {Math.abs(size[0]), Math.abs(size[1]), Math.abs(size[2])};
+		}
+
+		/*
+		 * One region per tile, with its share of the block data and tile entities, each handed to out.
+		 * Tiles are filled a row along x at a time and out waits for a free worker,
+		 * so only one row of tiles is held besides the ones being written.
+		 * Tiles have positive sizes and are positioned from the region's lowest corner,
+		 * so their offsets add up to the region's. This region's block data is closed once it's split.
+		 */
+		void split(Tiling tiling, ConversionOptions options, TileWriter out) throws IOException {
+			if (!claim())
+				throw new InterruptedIOException("Conversion cancelled");
+			Region[] row = new Region[tiling.tiles[0]];
+			try (Tiling.Splitter splitter = tiling.splitter(blocks)) {
+				Map<Integer, List<CompoundTag>> moved = splitTileEntities(tiling);
+				ScratchBuffer[] buffers = new ScratchBuffer[row.length];
+				for (int tileY = 0; tileY < tiling.tiles[1]; ++tileY) {
+					for (int tileZ = 0; tileZ < tiling.tiles[2]; ++tileZ) {
+						for (int tileX = 0; tileX < row.length; ++tileX) {
+							int index = tiling.index(tileX, tileY, tileZ);
+							List<CompoundTag> tileEntities = moved.remove(index);
+							row[tileX] = tile(tiling, index, tileEntities != null ? tileEntities : new ArrayList<>());
+							buffers[tileX] = row[tileX].blocks = ScratchBuffer.allocate((long) row[tileX].numBlocks * bytesPerBlock, options);
+						}
+						splitter.copyRow(tileY, tileZ, buffers);
+						for (int tileX = 0; tileX < row.length; ++tileX) {
+							Region tile = row[tileX];
+							row[tileX] = null;
+							out.write(tile);
+						}
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				// tiles handed on are discarded with the other outputs
+				for (Region tile : row) {
+					if (tile != null)
+						tile.discard();
+				}
+				throw e;
+			} finally {
+				closeBlocks();
+			}
+		}
+
+		private Region tile(Tiling tiling, int index, List<CompoundTag> tileEntities) {
+			int[] origin = tiling.origin(index);
+			int[] grid = tiling.position(index);
+			Region tile = new Region(name + "-" + grid[0] + "_" + grid[1] + "_" + grid[2], blocksBefore);
+			tile.palette = palette;
+			tile.size = tiling.dimensions(index);
+			tile.position = new int[3];
+			for (int axis = 0; axis < 3; ++axis)
+				tile.position[axis] = position[axis] + (size[axis] < 0 ? size[axis] + 1 : 0) + origin[axis];
+			tile.numBlocks = (int) tiling.volume(index);
+			tile.bytesPerBlock = bytesPerBlock;
+			tile.tileEntities = tileEntities;
+			tile.rules = rules;
+			tile.sanitized = sanitized;
+			tile.tiled = true;
+			return tile;
+		}
+
+		// tile entities by the index of the tile they're in, with Pos made relative to it
+		private Map<Integer, List<CompoundTag>> splitTileEntities(Tiling tiling) {
+			Map<Integer, List<CompoundTag>> byTile = new HashMap<>();
+			for (CompoundTag tileEntity : tileEntities) {
+				int[] pos = tileEntity.get("Pos").intArray();
+				int index = tiling.indexAt(pos[0], pos[1], pos[2]);
+				// WorldEdit wouldn't place a tile entity outside of its schematic either
+				if (index < 0)
+					continue;
+				int[] origin = tiling.origin(index);
+				CompoundTag moved = new CompoundTag();
+				moved.add("Pos", new IntArrayTag(new int[] {pos[0] - origin[0], pos[1] - origin[1], pos[2] - origin[2]}));
+				for (NamedTag tag : tileEntity) {
+					if (!tag.name().equals("Pos"))
+						moved.add(tag);
+				}
+				byTile.computeIfAbsent(index, i -> new ArrayList<>()).add(moved);
+			}
+			return byTile;
+		}
+
+		void closeSpool() throws IOException {
+			if (spool != null) {
+				spool.close();
+				spool = null;
+			}
+		}
+
+		void closeBlocks() throws IOException {
+			closeSpool();
+			if (blocks != null) {
+				blocks.close();
+				blocks = null;
+			}
+		}
+
+		void discard() {
+			if (!claim())
+				return;
+			try {
+				closeBlocks();
+			} catch (IOException e) {
+				// the conversion has failed already, this is only cleanup
+			}
+		}
+	}
+
+	// a WorldEdit schematic on its way to becoming a litematic
+	private static class Schematic {
+		String[] palette;
+		int[] remap, size;
+		int[] offset;
+		final int[] weOffset = new int[3];
+		int version, dataVersion = -1;
+		List<CompoundTag> tileEntities = new ArrayList<>();
+		// block data read before the palette and size, as varints
+		ScratchBuffer varints;
+		BlockStatePacker packer;
+		ScratchBuffer blocks;
+		private final int[] dimensions = new int[3];
+		private int dimensionsRead;
+
+		/*
+		 * v3 places the blocks at "Offset" from WorldEdit's origin, its metadata only adds where that origin was.
+		 * v2 keeps "Offset" for the blocks' place in the world and the offset from the origin in its metadata.
+		 */
+		int[] position() {
+			return version >= 3 && offset != null && offset.length == 3 ? offset : weOffset;
+		}
+
+		// the size is only set once all three dimensions have been read
+		void dimension(int axis, int value) {
+			// WorldEdit writes them as unsigned shorts
+			dimensions[axis] = value & 0xffff;
+			dimensionsRead |= 1 << axis;
+			if (dimensionsRead == 7)
+				size = dimensions;
+		}
+
+		void beginBlocks(ConversionOptions options) throws IOException {
+			long volume = (long) size[0] * size[1] * size[2];
+			SchematicTooLargeException.check(volume, options.maxBlocks);
+			SchematicTooLargeException.check(volume, Integer.MAX_VALUE - 8);
+			int numBlocks = (int) volume;
+			options.metrics.blocks.record(numBlocks);
+			options.metrics.paletteSize.record(palette.length);
+			int bitsPerBlock = BlockStateUnpacker.bitsPerBlock(palette.length);
+			blocks = ScratchBuffer.allocate((long) BlockStatePacker.words(numBlocks, bitsPerBlock) * Long.BYTES, options);
+			packer = new BlockStatePacker(bitsPerBlock, numBlocks, remap, blocks);
+		}
+
+		void close() throws IOException {
+			try {
+				if (varints != null)
+					varints.close();
+			} finally {
+				varints = null;
+				if (blocks != null)
+					blocks.close();
+				blocks = null;
+			}
 		}
 	}
 
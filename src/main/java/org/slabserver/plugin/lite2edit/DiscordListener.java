@@ -2,20 +2,31 @@ package org.slabserver.plugin.lite2edit;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletionException;
 
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Message.Attachment;
 import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRemoveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
 import net.dv8tion.jda.api.events.message.priv.PrivateMessageReceivedEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.requests.restaction.MessageAction;
 
 public class DiscordListener extends ListenerAdapter {
+	private static final String MATERIALS_SUFFIX = "-materials.csv";
+	// materials listed in the reply, the attached list has all of them
+	private static final int MATERIAL_SUMMARY_SIZE = 5;
 	private final JDA jda;
 	private final Lite2Edit plugin;
 
@@ -34,8 +45,7 @@ public class DiscordListener extends ListenerAdapter {
 		Config config = plugin.config;
 		long userId = event.getAuthor().getIdLong();
 		String userTag = event.getAuthor().getAsTag();
-		long userBytes = plugin.downloadedBytes.getOrDefault(userId, 0L);
-		if (userBytes > (config.dailyUploadLimit << 20)) {
+		if (plugin.quotas.used(userId) >= (config.dailyUploadLimit << 20)) {
 			plugin.getLogger().info(userTag + " has uploaded too many schematics");
 			event.getChannel().sendMessage("You've uploaded too many schematics").queue();
 			return;
@@ -49,16 +59,59 @@ public class DiscordListener extends ListenerAdapter {
 			failure(event, "Configured whitelisted role could not be found. Contact server administrator for help.");
 		}
 		else {
+			// only users that aren't cached are looked up, which takes a round trip to Discord
+			Boolean cached = plugin.members.get(userId);
+			if (cached != null) {
+				authorized(event, cached);
+				return;
+			}
 			guild.retrieveMemberById(userId).queue(member -> {
-				if (member.getRoles().contains(whitelistedRole)) {
-					handleUploads(event);
-				}
-				else {
-					failure(event, "You're not whitelisted to use this bot.");
-				}
+				boolean whitelisted = member.getRoles().contains(whitelistedRole);
+				plugin.members.put(userId, whitelisted);
+				authorized(event, whitelisted);
+			}, error -> {
+				// not a member of the guild, or Discord couldn't be reached, which isn't cached
+				failure(event, "You're not whitelisted to use this bot.");
 			});
 		}
 	}
+
+	private void authorized(PrivateMessageReceivedEvent event, boolean whitelisted) {
+		if (whitelisted) {
+			handleUploads(event);
+		}
+		else {
+			failure(event, "You're not whitelisted to use this bot.");
+		}
+	}
+
+	@Override
+	public void onGuildMemberRoleAdd(GuildMemberRoleAddEvent event) {
+		if (isWhitelistedRole(event.getGuild(), event.getRoles()))
+			plugin.members.put(event.getUser().getIdLong(), true);
+	}
+
+	@Override
+	public void onGuildMemberRoleRemove(GuildMemberRoleRemoveEvent event) {
+		if (isWhitelistedRole(event.getGuild(), event.getRoles()))
+			plugin.members.put(event.getUser().getIdLong(), false);
+	}
+
+	@Override
+	public void onGuildMemberRemove(GuildMemberRemoveEvent event) {
+		if (event.getGuild().getIdLong() == plugin.config.whitelistedGuild)
+			plugin.members.put(event.getUser().getIdLong(), false);
+	}
+
+	private boolean isWhitelistedRole(Guild guild, List<Role> roles) {
+		if (guild.getIdLong() != plugin.config.whitelistedGuild)
+			return false;
+		for (Role role : roles) {
+			if (role.getIdLong() == plugin.config.whitelistedRole)
+				return true;
+		}
+		return false;
+	}
 	
 	private void failure(PrivateMessageReceivedEvent event, String error) {
 		String userTag = event.getAuthor().getAsTag();
@@ -70,7 +123,7 @@ public class DiscordListener extends ListenerAdapter {
 		List<Attachment> attachments = event.getMessage().getAttachments();
 		String userTag = event.getAuthor().getAsTag();
 		long userId = event.getAuthor().getIdLong();
-		long userBytes = plugin.downloadedBytes.getOrDefault(userId, 0L);
+		long limit = plugin.config.dailyUploadLimit << 20;
 
 		for (Attachment att : attachments) {
 			String filename = att.getFileName();
@@ -82,50 +135,209 @@ public class DiscordListener extends ListenerAdapter {
 				 * move to worldedit folder
 				 */
 				plugin.getLogger().info(userTag + " uploaded " + filename);
-				userBytes += att.getSize();
+				// bytes are reserved up front, so uploads handled at the same time can't go over the limit together
+				QuotaTracker.Reservation reservation = plugin.quotas.reserve(userId, att.getSize(), limit);
+				if (reservation == null) {
+					failure(event, "Uploading `" + filename + "` would go over your daily upload limit.");
+					continue;
+				}
 				String path = plugin.getDataFolder() + "/uploads/" + userTag.replaceAll("[^\\w]+", "_");
 				File outputDir = new File(path);
 				outputDir.mkdirs();
-				try {
-					path += "/" + filename;
-					att.downloadToFile(path).thenAccept(inputFile -> {
-						String msg;
-						try {
-							// convert litematic to worldedit and sanitize output
-							if (litematic) {
-								List<File> schematics = Converter.litematicToWorldEdit(inputFile, outputDir, plugin.config.sanitize);
-								List<String> lines = new ArrayList<>();
-								for (File schem : schematics) {
-									lines.add("Uploaded `" + copyToSchematicFolders(schem).getName() + "`");
-								}
-								msg = String.join("\n", lines);
-							}
-							// sanitize worldedit schematic
-							else {
-								if (plugin.config.sanitize)
-									Sanitizer.sanitize(inputFile);
-								String outputFile = copyToSchematicFolders(inputFile).getName();
-								msg = "Uploaded `" + outputFile + "`";
-							}
-						} catch (IOException e) {
-							e.printStackTrace();
-							msg = "IO Exception. Contact server administrator for help.";
-						} catch (Throwable e) {
-							e.printStackTrace();
-							msg = "Unexpected error. Contact server administrator for help. (" + e.getClass().getName() + ")";
-						}
-						plugin.getLogger().info(msg);
-						event.getChannel().sendMessage(msg).queue();
-					});
-				} catch (Throwable e) {
-					e.printStackTrace();
-					String msg = "Failed to download `" + filename + "`";
+				// downloads and conversions run on the conversion workers, not on JDA's threads
+				ConversionScheduler.Submission submission = plugin.scheduler.submit(userId, () -> {
+					String msg;
+					List<File> files = new ArrayList<>();
+					try {
+						msg = convert(att, outputDir, litematic, files);
+					} catch (CompletionException e) {
+						e.printStackTrace();
+						msg = "Failed to download `" + filename + "`";
+					}
 					plugin.getLogger().info(msg);
-					event.getChannel().sendMessage(msg).queue();
+					MessageAction reply = event.getChannel().sendMessage(msg);
+					for (File file : files)
+						reply = reply.addFile(file);
+					reply.queue();
+				});
+				switch (submission.status) {
+				case STARTED:
+					break;
+				case QUEUED:
+					plugin.getLogger().info(filename + " is queued, " + plugin.scheduler.stats());
+					event.getChannel().sendMessage("`" + filename + "` is queued for conversion (position " + submission.position + ")").queue();
+					break;
+				case QUEUE_FULL:
+					reservation.release();
+					failure(event, "The conversion queue is full, try uploading `" + filename + "` again later.");
+					break;
+				case USER_LIMIT:
+					reservation.release();
+					failure(event, "You already have " + plugin.config.maxUploadsPerUser + " uploads being converted, try uploading `" + filename + "` again once they finish.");
+					break;
+				}
+			}
+		}
+	}
+
+	// files to attach to the reply, such as the material list, are added to attachments on success
+	private String convert(Attachment att, File outputDir, boolean litematic, List<File> attachments) {
+		String msg;
+		File inputFile = new File(outputDir, att.getFileName());
+		Metrics metrics = plugin.metrics;
+		long start = metrics.convert.start();
+		try {
+			List<File> schematics;
+			MaterialList materials = null;
+			File materialsFile = null;
+			if (plugin.cache != null) {
+				schematics = new ArrayList<>(convertCached(att, inputFile, outputDir, litematic));
+				// the material list is cached along with the schematics
+				for (File file : schematics) {
+					if (file.getName().endsWith(MATERIALS_SUFFIX))
+						materialsFile = file;
+				}
+				if (materialsFile != null) {
+					schematics.remove(materialsFile);
+					if (plugin.config.materialList)
+						materials = MaterialList.readCsv(materialsFile);
+				}
+			}
+			// convert litematic to worldedit and sanitize output
+			else if (litematic) {
+				if (plugin.config.streamUploads) {
+					// convert while downloading, the original is only kept if archiving is enabled
+					InputStream in = att.retrieveInputStream().join();
+					if (plugin.config.archiveUploads)
+						in = new ArchivingInputStream(in, inputFile, plugin.archiver, plugin.getLogger());
+					ConversionResult result;
+					try (InputStream input = in) {
+						result = Converter.convertLitematic(input, att.getFileName(), outputDir, plugin.conversionOptions());
+					}
+					schematics = result.schematics;
+					materials = result.materials();
+				}
+				else {
+					download(att, inputFile);
+					ConversionResult result = Converter.convertLitematic(inputFile, outputDir, plugin.conversionOptions());
+					schematics = result.schematics;
+					materials = result.materials();
+				}
+				if (plugin.config.materialList)
+					materialsFile = writeMaterials(materials, outputDir, att.getFileName());
+			}
+			// sanitize worldedit schematic
+			else {
+				if (plugin.config.streamUploads) {
+					try (InputStream in = att.retrieveInputStream().join()) {
+						if (plugin.config.sanitize)
+							Sanitizer.sanitize(in, inputFile, plugin.conversionOptions());
+						else
+							save(in, inputFile);
+					}
+				}
+				else {
+					download(att, inputFile);
+					if (plugin.config.sanitize)
+						Sanitizer.sanitize(inputFile, plugin.conversionOptions());
 				}
+				schematics = Collections.singletonList(inputFile);
 			}
+			List<String> lines = new ArrayList<>();
+			long copyStart = metrics.copy.start();
+			for (File schem : schematics) {
+				lines.add("Uploaded `" + plugin.delivery.deliver(schem).getName() + "`");
+			}
+			metrics.copy.stop(copyStart);
+			if (plugin.config.materialList && materials != null && !materials.isEmpty()) {
+				lines.add("Materials: " + materials.summary(MATERIAL_SUMMARY_SIZE));
+				attachments.add(materialsFile);
+			}
+			msg = String.join("\n", lines);
+			metrics.conversions.increment();
+			metrics.convert.stop(start);
+			metrics.inputBytes.record(att.getSize());
+		} catch (CompletionException e) {
+			// failed downloads are reported by the caller
+			metrics.failures.increment();
+			throw e;
+		} catch (SchematicTooLargeException e) {
+			metrics.failures.increment();
+			msg = "`" + att.getFileName() + "` is too large to convert, " + e.getMessage() + ".";
+		} catch (IOException e) {
+			e.printStackTrace();
+			metrics.failures.increment();
+			msg = "IO Exception. Contact server administrator for help.";
+		} catch (Throwable e) {
+			e.printStackTrace();
+			metrics.failures.increment();
+			msg = "Unexpected error. Contact server administrator for help. (" + e.getClass().getName() + ")";
 		}
-		plugin.downloadedBytes.put(userId, userBytes);
+		return msg;
+	}
+
+	/*
+	 * Uploads can only be looked up once they're complete,
+	 * so they're hashed while being saved and converted from disk on a miss.
+	 */
+	private List<File> convertCached(Attachment att, File inputFile, File outputDir, boolean litematic) throws IOException {
+		MessageDigest digest = ConversionCache.newDigest();
+		try (InputStream in = new DigestInputStream(att.retrieveInputStream().join(), digest)) {
+			save(in, inputFile);
+		}
+		boolean sanitize = plugin.config.sanitize;
+		// the schematic version, tile size and palette compaction only change how litematics are written
+		String kind = litematic ? "litematic\nv" + plugin.config.schematicVersion + "\n" + plugin.config.maxTileVolume
+				+ (plugin.config.compactPalette ? "\ncompact" : "") : "schem";
+		String key = ConversionCache.key(digest.digest(), kind, sanitize);
+
+		// output names start with the upload's name, see Converter.litematicToWorldEdit
+		String filename = att.getFileName();
+		String baseName = filename.substring(0, filename.lastIndexOf('.'));
+		if (litematic)
+			baseName = baseName.replaceAll("[^\\w-]+", "_");
+
+		List<File> schematics = plugin.cache.get(key, baseName, outputDir);
+		if (schematics != null) {
+			plugin.getLogger().info(filename + " was converted before, using cached output");
+			return schematics;
+		}
+		if (litematic) {
+			ConversionResult result = Converter.convertLitematic(inputFile, outputDir, plugin.conversionOptions());
+			schematics = new ArrayList<>(result.schematics);
+			if (plugin.config.materialList)
+				schematics.add(writeMaterials(result.materials(), outputDir, filename));
+		}
+		else {
+			if (sanitize)
+				Sanitizer.sanitize(inputFile, plugin.conversionOptions());
+			schematics = Collections.singletonList(inputFile);
+		}
+		plugin.cache.put(key, baseName, schematics);
+		return schematics;
+	}
+
+	// named after the upload the same way its schematics are
+	private static File writeMaterials(MaterialList materials, File outputDir, String filename) throws IOException {
+		String baseName = filename.contains(".") ? filename.substring(0, filename.lastIndexOf('.')) : filename;
+		File file = new File(outputDir, baseName.replaceAll("[^\\w-]+", "_") + MATERIALS_SUFFIX);
+		materials.writeCsv(file);
+		return file;
+	}
+
+	private void download(Attachment att, File file) throws IOException {
+		// delivered schematics may be hard links to an earlier upload of the same name,
+		// replace the file instead of writing through it
+		Files.deleteIfExists(file.toPath());
+		long start = plugin.metrics.download.start();
+		att.downloadToFile(file).join();
+		plugin.metrics.download.stop(start);
+	}
+
+	private void save(InputStream in, File file) throws IOException {
+		long start = plugin.metrics.download.start();
+		Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		plugin.metrics.download.stop(start);
 	}
 
 	private boolean containsSchematics(PrivateMessageReceivedEvent event) {
@@ -137,30 +349,5 @@ public class DiscordListener extends ListenerAdapter {
 		}
 		return false;
 	}
-	
-	private File copyToSchematicFolders(File file) throws IOException {
-		String pluginsDir = plugin.getDataFolder().getParent();
-		String weDir = pluginsDir + "/WorldEdit/schematics";
-		String faweDir = pluginsDir + "/FastAsyncWorldEdit/schematics";
-		
-		Files.createDirectories(Paths.get(weDir));
-		Files.createDirectories(Paths.get(faweDir));
-		String destinationName = weDir + "/" + file.getName();
-		File destination = new File(destinationName);
-		int index = destinationName.lastIndexOf('.');
-		for (int i = 1; i < 1000 && destination.exists(); ++i) {
-			if (index < 0)
-				destination = new File(destinationName + "(" + i + ")");
-			else {
-				String path = new StringBuilder(destinationName)
-						.insert(index, "(" + i + ")")
-						.toString();
-				destination = new File(path);
-			}
-		}
-		Files.copy(file.toPath(), destination.toPath());
-		Files.copy(file.toPath(), Paths.get(faweDir + "/" + destination.getName()), StandardCopyOption.REPLACE_EXISTING);
-		return destination;
-	}
 
 }
@@ -1,28 +1,44 @@
 package org.slabserver.plugin.lite2edit;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.plugin.java.JavaPluginLoader;
 
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
 
 public class Lite2Edit extends JavaPlugin {
+	private static final int MEMBER_CACHE_SIZE = 10000;
 	public static JDA jda;
 	public static Lite2Edit plugin;
 	private ScheduledExecutorService executor;
-	protected Map<Long, Long> downloadedBytes;
+	private ExecutorService regionExecutor, deflateExecutor;
+	protected ConversionScheduler scheduler;
+	protected ConversionService service;
+	protected ExecutorService archiver;
+	protected ConversionCache cache;
+	protected SchematicDelivery delivery;
+	protected final Metrics metrics = new Metrics();
+	protected QuotaTracker quotas;
+	protected MemberCache members;
+	protected MemoryBudget memoryBudget = MemoryBudget.UNLIMITED;
 	protected Config config;
 
 	public Lite2Edit() {
@@ -35,9 +51,7 @@ public class Lite2Edit extends JavaPlugin {
 	
 	@Override
 	public void onEnable() {
-		downloadedBytes = Collections.synchronizedMap(new HashMap<>());
 		executor = Executors.newSingleThreadScheduledExecutor();
-		executor.schedule(downloadedBytes::clear, 1, TimeUnit.DAYS);
 		
 		try {
 			Path folder = getDataFolder().toPath();
@@ -54,17 +68,154 @@ public class Lite2Edit extends JavaPlugin {
 						"#Numeric ID of the role the member must have to upload schematics",
 						"whitelistedRole: 0",
 						"",
-						"#Number of megabytes a user is allowed to upload each day",
+						"#Number of megabytes a user is allowed to upload in any 24 hours",
 						"#Trying to upload past this limit will result in an error message",
 						"dailyUploadLimit: 50",
 						"",
+						"#Minutes a user's whitelisted role is remembered before asking Discord again, 0 always asks",
+						"memberCacheMinutes: 10",
+						"",
+						"#Update remembered roles as soon as they change or a member leaves",
+						"#Needs the Server Members Intent to be enabled for the bot in the Discord developer portal",
+						"memberEvents: false",
+						"",
 						"#Remove unsafe tile entities from uploaded schematics",
-						"sanitize: true"
+						"sanitize: true",
+						"",
+						"#Megabytes of block data a region may use on the heap during conversion",
+						"#Larger regions are buffered in memory-mapped files in the plugin folder",
+						"scratchMapThreshold: 64",
+						"",
+						"#Megabytes of heap all conversions together may use for block data",
+						"#Once it's used up, further regions are buffered in memory-mapped files as well",
+						"memoryBudget: 512",
+						"",
+						"#Largest number of blocks an upload may have across all its regions, 0 for no limit",
+						"#Larger uploads are refused before they're converted",
+						"maxBlocks: 200000000",
+						"",
+						"#Largest number of blocks in one output schematic, 0 for no limit",
+						"#Larger regions are split into a grid of schematics that can be pasted one at a time",
+						"maxTileVolume: 16777216",
+						"",
+						"#Number of threads used to write the regions of a multi-region litematic in parallel",
+						"regionThreads: 2",
+						"",
+						"#Number of threads used to compress large schematics, 0 compresses on the converting thread",
+						"deflateThreads: 2",
+						"",
+						"#Gzip level of written schematics, from 1 (fastest) to 9 (smallest)",
+						"compressionLevel: 6",
+						"",
+						"#Drop unused palette entries and number the rest by how often they're used,",
+						"#which makes the block data of large palettes smaller",
+						"compactPalette: true",
+						"",
+						"#Summarize the materials of converted litematics in the reply and attach the full list as a CSV file",
+						"materialList: true",
+						"",
+						"#Sponge schematic version written, 2 or 3, 0 writes version 3 for litematics from 1.20.4 and later",
+						"#and version 2 for older ones, the same as WorldEdit does",
+						"schematicVersion: 0",
+						"",
+						"#Number of uploads converted at the same time",
+						"conversionThreads: 2",
+						"",
+						"#Number of uploads that can wait for a conversion thread before new ones are turned away",
+						"conversionQueueSize: 20",
+						"",
+						"#Number of uploads a single user can have queued or converting at once",
+						"maxUploadsPerUser: 3",
+						"",
+						"#Convert uploads while they are downloaded instead of saving them to disk first",
+						"#Only while conversionCacheSize is 0, looking an upload up in the cache needs all of it",
+						"streamUploads: true",
+						"",
+						"#Keep a copy of uploaded litematics in the uploads folder when streaming",
+						"archiveUploads: true",
+						"",
+						"#Megabytes of converted schematics kept so uploading the same file again skips conversion",
+						"#Uploads are saved to disk before converting while the cache is enabled, 0 disables it",
+						"conversionCacheSize: 256",
+						"",
+						"#File the conversion metrics are written to every minute in Prometheus text format, empty disables it",
+						"#Point it into the node exporter's textfile collector directory, e.g. /var/lib/node_exporter/lite2edit.prom",
+						"metricsFile: ''",
+						"",
+						"#What sanitizing removes, reload with /lite2edit reload",
+						"#Ids are patterns where * matches anything and ? one character",
+						"#Ids without a namespace match any namespace",
+						"sanitizeRules:",
+						"  #Blocks swapped for the replacement block, states can be matched like minecraft:tnt[unstable=true]",
+						"  blocks:",
+						"  - '*command_block*'",
+						"  - '*structure_block*'",
+						"  - '*jigsaw*'",
+						"  replacement: 'minecraft:stone'",
+						"  #Tile entities that are removed",
+						"  removeTileEntities:",
+						"  - 'command_block'",
+						"  - 'structure_block'",
+						"  - 'jigsaw'",
+						"  #Strings inside tile entities that are replaced, or removed if there's no replace",
+						"  #Paths are keys separated by dots, a key ending in [] means every element of that list",
+						"  tileEntityData:",
+						"  - id: '*sign'",
+						"    path: 'Text?'",
+						"    contains: '\"clickEvent\"'",
+						"    replace: ''",
+						"  - id: '*sign'",
+						"    path: '*_text.messages[]'",
+						"    contains: '\"clickEvent\"'",
+						"    replace: ''",
+						"  #Remove entities to avoid falling block exploits",
+						"  removeEntities: true"
 				));
 			}
 			
 			config = new Config(this);
-			jda = JDABuilder.createDefault(config.token).build();
+			quotas = new QuotaTracker(new File(getDataFolder(), "quotas.txt"));
+			// a crash loses at most a few minutes of usage
+			executor.scheduleWithFixedDelay(() -> {
+				quotas.expire();
+				try {
+					quotas.save();
+				} catch (IOException e) {
+					getLogger().warning("Could not save upload quotas: " + e);
+				}
+			}, 5, 5, TimeUnit.MINUTES);
+			Sanitizer.setRules(config.sanitizeRules);
+			Sanitizer.setLogger(getLogger());
+			memoryBudget = new MemoryBudget(config.memoryBudget << 20);
+			regionExecutor = Executors.newFixedThreadPool(config.regionThreads, threadFactory("Lite2Edit Region"));
+			if (config.deflateThreads > 0)
+				deflateExecutor = Executors.newFixedThreadPool(config.deflateThreads, threadFactory("Lite2Edit Deflate"));
+			scheduler = new ConversionScheduler(config.conversionThreads, config.conversionQueueSize, config.maxUploadsPerUser);
+			// other plugins convert through the same workers
+			service = new ConversionService(this);
+			getServer().getServicesManager().register(ConversionService.class, service, this, ServicePriority.Normal);
+			archiver = Executors.newSingleThreadExecutor(threadFactory("Lite2Edit Archiver"));
+			delivery = new SchematicDelivery(getDataFolder().getParentFile());
+			if (config.conversionCacheSize > 0)
+				cache = new ConversionCache(new File(getDataFolder(), "cache"), config.conversionCacheSize << 20);
+			if (!config.metricsFile.isEmpty()) {
+				File metricsFile = new File(config.metricsFile);
+				executor.scheduleWithFixedDelay(() -> {
+					try {
+						metrics.export(metricsFile);
+					} catch (IOException e) {
+						getLogger().warning("Could not write metrics to " + metricsFile + ": " + e);
+					}
+				}, 1, 1, TimeUnit.MINUTES);
+			}
+			members = new MemberCache(TimeUnit.MINUTES.toMillis(config.memberCacheMinutes), MEMBER_CACHE_SIZE);
+			JDABuilder builder = JDABuilder.createDefault(config.token);
+			if (config.memberEvents) {
+				// member updates are only sent for cached members, so cache all of them
+				builder.enableIntents(GatewayIntent.GUILD_MEMBERS);
+				builder.setMemberCachePolicy(MemberCachePolicy.ALL);
+			}
+			jda = builder.build();
 		} catch (Exception e) {
 			e.printStackTrace();
 			return;
@@ -79,6 +230,119 @@ public class Lite2Edit extends JavaPlugin {
 		if (jda != null)
 			jda.shutdownNow();
 		executor.shutdownNow();
+		if (service != null) {
+			getServer().getServicesManager().unregisterAll(this);
+			service.close();
+		}
+		if (scheduler != null)
+			scheduler.shutdown();
+		if (regionExecutor != null)
+			regionExecutor.shutdownNow();
+		if (deflateExecutor != null)
+			deflateExecutor.shutdownNow();
+		// let pending archive writes finish
+		if (archiver != null)
+			archiver.shutdown();
+		if (quotas != null) {
+			try {
+				quotas.save();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		// keep the order entries were last used in
+		if (cache != null) {
+			try {
+				cache.save();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+		if (args.length == 0)
+			return false;
+		switch (args[0].toLowerCase()) {
+		case "reload":
+			reloadConfig();
+			SanitizeRules rules = new Config(this).sanitizeRules;
+			if (config != null)
+				config.sanitizeRules = rules;
+			Sanitizer.setRules(rules);
+			// the whitelisted guild or role may have changed
+			if (members != null)
+				members.clear();
+			sender.sendMessage("Reloaded " + rules.rules().size() + " sanitize rules");
+			return true;
+		case "rules":
+			for (SanitizeRules.Rule rule : Sanitizer.getRules().rules()) {
+				sender.sendMessage(rule + ": " + rule.hits() + " hits");
+			}
+			return true;
+		case "stats":
+			for (String line : metrics.report()) {
+				sender.sendMessage(line);
+			}
+			if (scheduler != null)
+				sender.sendMessage("queue: " + scheduler.stats());
+			sender.sendMessage("memory budget: " + (memoryBudget.used() >> 20) + " of " + (memoryBudget.limit() >> 20) + " MB in use");
+			return true;
+		case "litematic":
+			if (args.length < 2 || scheduler == null)
+				return false;
+			convertToLitematic(sender, String.join(" ", Arrays.copyOfRange(args, 1, args.length)));
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// converts a schematic from the WorldEdit folder into the litematics folder
+	private void convertToLitematic(CommandSender sender, String name) {
+		File schematicDir = new File(getDataFolder().getParentFile(), "WorldEdit/schematics");
+		File schematic = new File(schematicDir, name.endsWith(".schem") ? name : name + ".schem");
+		if (!schematic.getAbsoluteFile().getParentFile().equals(schematicDir.getAbsoluteFile())) {
+			sender.sendMessage("Schematics have to be in the WorldEdit schematics folder");
+			return;
+		}
+		if (!schematic.isFile()) {
+			sender.sendMessage("Schematic " + schematic.getName() + " not found");
+			return;
+		}
+		// console and players share the conversion workers with Discord uploads under user id 0
+		ConversionScheduler.Submission submission = scheduler.submit(0, () -> {
+			try {
+				File litematic = Converter.worldEditToLitematic(schematic, new File(getDataFolder(), "litematics"), conversionOptions());
+				sender.sendMessage("Saved " + litematic.getPath());
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				sender.sendMessage("Could not convert " + schematic.getName() + ": " + e.getMessage());
+			}
+		});
+		if (submission.status == ConversionScheduler.Status.QUEUE_FULL || submission.status == ConversionScheduler.Status.USER_LIMIT)
+			sender.sendMessage("Too many conversions running, try again later");
+	}
+
+	public ConversionOptions conversionOptions() {
+		ConversionOptions options = config.conversionOptions();
+		options.regionExecutor = regionExecutor;
+		options.regionThreads = config.regionThreads;
+		options.deflateExecutor = deflateExecutor;
+		options.deflateThreads = config.deflateThreads;
+		options.metrics = metrics;
+		options.memoryBudget = memoryBudget;
+		return options;
+	}
+
+	static ThreadFactory threadFactory(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + " #" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
 	}
 	
 	public static Lite2Edit getInstance() {
@@ -0,0 +1,106 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Blocks needed to build a schematic, counted per block type.
+ * States of the same block are added up, "minecraft:oak_stairs[facing=east]"
+ * counts as "minecraft:oak_stairs", and air isn't a material.
+ *
+ * Litematic conversions fill it from the palette indices counted while unpacking,
+ * so the output doesn't have to be read again to find out what a schematic is made of.
+ */
+public class MaterialList {
+	private static final List<String> AIR = Arrays.asList("minecraft:air", "minecraft:cave_air", "minecraft:void_air");
+
+	private final Map<String, Long> counts = new HashMap<>();
+
+	// histogram holds the blocks per palette index, indices outside of the palette are skipped
+	public void add(String[] palette, int[] histogram) {
+		for (int i = 0; i < histogram.length && i < palette.length; ++i) {
+			if (histogram[i] != 0)
+				add(palette[i], histogram[i]);
+		}
+	}
+
+	public void add(String blockState, long count) {
+		int properties = blockState.indexOf('[');
+		String block = properties < 0 ? blockState : blockState.substring(0, properties);
+		if (!AIR.contains(block))
+			counts.merge(block, count, Long::sum);
+	}
+
+	public void add(MaterialList other) {
+		for (Map.Entry<String, Long> entry : other.counts.entrySet())
+			counts.merge(entry.getKey(), entry.getValue(), Long::sum);
+	}
+
+	public long count(String block) {
+		return counts.getOrDefault(block, 0L);
+	}
+
+	public long total() {
+		long total = 0;
+		for (long count : counts.values())
+			total += count;
+		return total;
+	}
+
+	public int size() {
+		return counts.size();
+	}
+
+	public boolean isEmpty() {
+		return counts.isEmpty();
+	}
+
+	// most used first, ties by name
+	public List<Map.Entry<String, Long>> entries() {
+		List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+		entries.sort((a, b) -> !a.getValue().equals(b.getValue())
+				? Long.compare(b.getValue(), a.getValue()) : a.getKey().compareTo(b.getKey()));
+		return entries;
+	}
+
+	// the most used materials on one line, such as "1200 stone, 310 oak_planks and 12 more"
+	public String summary(int limit) {
+		List<Map.Entry<String, Long>> entries = entries();
+		List<String> parts = new ArrayList<>();
+		for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(limit, entries.size())))
+			parts.add(entry.getValue() + " " + entry.getKey().replaceFirst("^minecraft:", ""));
+		String summary = String.join(", ", parts);
+		if (entries.size() > limit)
+			summary += " and " + (entries.size() - limit) + " more";
+		return summary;
+	}
+
+	public static MaterialList readCsv(File file) throws IOException {
+		MaterialList materials = new MaterialList();
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			int comma = line.lastIndexOf(',');
+			try {
+				materials.counts.merge(line.substring(0, comma), Long.parseLong(line.substring(comma + 1)), Long::sum);
+			} catch (IndexOutOfBoundsException | NumberFormatException e) {
+				// the header, or a line that isn't a count
+			}
+		}
+		return materials;
+	}
+
+	public void writeCsv(File file) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add("block,count");
+		for (Map.Entry<String, Long> entry : entries())
+			lines.add(entry.getKey() + "," + entry.getValue());
+		Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+	}
+
+}
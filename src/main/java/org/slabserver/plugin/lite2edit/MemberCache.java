@@ -0,0 +1,77 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Whether users have the whitelisted role, so most uploads are authorized
+ * without a REST call to Discord. Entries expire after a while, and role
+ * and leave events update them as they arrive.
+ *
+ * Once the cache is full, expired entries are dropped first, then arbitrary
+ * ones, down to three quarters of the limit so evicting doesn't run on every put.
+ */
+public class MemberCache {
+	private final long ttlMillis;
+	private final int maxSize;
+	private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+
+	private static class Entry {
+		final boolean whitelisted;
+		final long expires;
+
+		Entry(boolean whitelisted, long expires) {
+			this.whitelisted = whitelisted;
+			this.expires = expires;
+		}
+	}
+
+	public MemberCache(long ttlMillis, int maxSize) {
+		this.ttlMillis = ttlMillis;
+		this.maxSize = Math.max(1, maxSize);
+	}
+
+	// null if the user isn't cached or the entry has expired
+	public Boolean get(long userId) {
+		Entry entry = entries.get(userId);
+		if (entry == null)
+			return null;
+		if (entry.expires - System.currentTimeMillis() <= 0) {
+			entries.remove(userId, entry);
+			return null;
+		}
+		return entry.whitelisted;
+	}
+
+	public void put(long userId, boolean whitelisted) {
+		if (ttlMillis <= 0)
+			return;
+		entries.put(userId, new Entry(whitelisted, System.currentTimeMillis() + ttlMillis));
+		if (entries.size() > maxSize)
+			evict();
+	}
+
+	public void invalidate(long userId) {
+		entries.remove(userId);
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private void evict() {
+		long now = System.currentTimeMillis();
+		entries.values().removeIf(entry -> entry.expires - now <= 0);
+		Iterator<Long> iterator = entries.keySet().iterator();
+		int target = maxSize - maxSize / 4;
+		while (entries.size() > target && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Heap bytes that conversions running at the same time may use for block data.
+ * Scratch buffers that don't fit are memory-mapped from the scratch directory instead,
+ * so a burst of large uploads can't run the server out of heap.
+ */
+public class MemoryBudget {
+	// conversions run without the plugin, such as benchmarks, only go by the scratch threshold
+	public static final MemoryBudget UNLIMITED = new MemoryBudget(Long.MAX_VALUE);
+
+	private final long limit;
+	private final AtomicLong used = new AtomicLong();
+
+	public MemoryBudget(long limit) {
+		this.limit = limit;
+	}
+
+	public boolean tryReserve(long bytes) {
+		while (true) {
+			long current = used.get();
+			if (bytes > limit - current)
+				return false;
+			if (used.compareAndSet(current, current + bytes))
+				return true;
+		}
+	}
+
+	public void release(long bytes) {
+		used.addAndGet(-bytes);
+	}
+
+	public long used() {
+		return used.get();
+	}
+
+	public long available() {
+		return Math.max(0, limit - used.get());
+	}
+
+	public long limit() {
+		return limit;
+	}
+
+}
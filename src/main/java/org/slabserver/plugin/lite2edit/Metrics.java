@@ -0,0 +1,214 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Timers for each stage of a conversion, histograms of what was converted
+ * and counters for outcomes. Shown by /lite2edit stats and optionally written
+ * as a Prometheus text file for the node exporter's textfile collector.
+ *
+ * When an upload is converted while it downloads, waiting for the download
+ * is part of the parse stage, the download stage only times saved uploads.
+ */
+public class Metrics {
+	// conversions run without the plugin, such as benchmarks, record into this one
+	public static final Metrics DISABLED = new Metrics(false);
+
+	public final Timer convert, download, inflate, parse, unpack, sanitize, deflate, copy;
+	public final Histogram inputBytes, blocks, paletteSize;
+	public final LongAdder conversions = new LongAdder(), failures = new LongAdder(), sanitized = new LongAdder();
+	private final List<Timer> stages;
+	private final boolean enabled;
+
+	public Metrics() {
+		this(true);
+	}
+
+	private Metrics(boolean enabled) {
+		this.enabled = enabled;
+		convert = new Timer("convert");
+		download = new Timer("download");
+		inflate = new Timer("inflate");
+		parse = new Timer("parse");
+		unpack = new Timer("unpack");
+		sanitize = new Timer("sanitize");
+		deflate = new Timer("deflate");
+		copy = new Timer("copy");
+		inputBytes = new Histogram("input_bytes");
+		blocks = new Histogram("blocks");
+		paletteSize = new Histogram("palette_size");
+		stages = Arrays.asList(download, inflate, parse, unpack, sanitize, deflate, copy);
+	}
+
+	public List<String> report() {
+		List<String> lines = new ArrayList<>();
+		long count = conversions.sum();
+		double seconds = convert.sum() / 1e9;
+		lines.add(count + " conversions, " + failures.sum() + " failed, " + sanitized.sum() + " sanitized, "
+				+ String.format(Locale.ROOT, "%.1f MB/s", seconds == 0 ? 0 : inputBytes.sum() / seconds / (1 << 20)));
+		lines.add(convert.describe());
+		for (Timer stage : stages) {
+			lines.add(stage.describe());
+		}
+		lines.add(inputBytes.describe());
+		lines.add(blocks.describe());
+		lines.add(paletteSize.describe());
+		return lines;
+	}
+
+	// written to a temporary file and moved, so the collector never reads half a file
+	public void export(File file) throws IOException {
+		StringWriter text = new StringWriter();
+		PrintWriter out = new PrintWriter(text);
+		out.println("# TYPE lite2edit_conversions_total counter");
+		out.println("lite2edit_conversions_total " + conversions.sum());
+		out.println("# TYPE lite2edit_failures_total counter");
+		out.println("lite2edit_failures_total " + failures.sum());
+		out.println("# TYPE lite2edit_sanitized_total counter");
+		out.println("lite2edit_sanitized_total " + sanitized.sum());
+		out.println("# TYPE lite2edit_stage_seconds histogram");
+		convert.export(out, "lite2edit_stage_seconds", "stage=\"convert\"");
+		for (Timer stage : stages) {
+			stage.export(out, "lite2edit_stage_seconds", "stage=\"" + stage.name + "\"");
+		}
+		for (Histogram histogram : new Histogram[] {inputBytes, blocks, paletteSize}) {
+			out.println("# TYPE lite2edit_" + histogram.name + " histogram");
+			histogram.export(out, "lite2edit_" + histogram.name, "");
+		}
+		out.flush();
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		Files.createDirectories(parent.toPath());
+		File tempFile = File.createTempFile("lite2edit", ".tmp", parent);
+		try {
+			Files.write(tempFile.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+			try {
+				Files.move(tempFile.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	/*
+	 * Power of two buckets, bucket i counts the values up to 2^i.
+	 * Percentiles are the upper bound of the bucket they fall in.
+	 */
+	public class Histogram {
+		private static final int BUCKETS = 48;
+
+		public final String name;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder(), sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		Histogram(String name) {
+			this.name = name;
+		}
+
+		public void record(long value) {
+			if (!enabled)
+				return;
+			int bucket = value <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value - 1));
+			buckets.incrementAndGet(bucket);
+			count.increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+
+		public long count() {
+			return count.sum();
+		}
+
+		public long sum() {
+			return sum.sum();
+		}
+
+		public long percentile(double p) {
+			long total = count();
+			if (total == 0)
+				return 0;
+			long rank = (long) Math.ceil(p * total), seen = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				seen += buckets.get(i);
+				if (seen >= rank)
+					return Math.min(1L << i, max.get());
+			}
+			return max.get();
+		}
+
+		String describe() {
+			long n = count();
+			return name + ": " + n + " recorded, mean " + (n == 0 ? 0 : sum() / n)
+					+ ", p50 " + percentile(0.5) + ", p99 " + percentile(0.99) + ", max " + max.get();
+		}
+
+		void export(PrintWriter out, String metric, String labels) {
+			String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				cumulative += buckets.get(i);
+				out.println(metric + "_bucket" + prefix + "le=\"" + format(1L << i) + "\"} " + cumulative);
+			}
+			out.println(metric + "_bucket" + prefix + "le=\"+Inf\"} " + count());
+			String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+			out.println(metric + "_sum" + suffix + " " + format(sum()));
+			out.println(metric + "_count" + suffix + " " + count());
+		}
+
+		String format(long value) {
+			return Long.toString(value);
+		}
+	}
+
+	// a histogram of nanoseconds, shown in milliseconds and exported in seconds
+	public class Timer extends Histogram {
+
+		Timer(String name) {
+			super(name);
+		}
+
+		public long start() {
+			return System.nanoTime();
+		}
+
+		public void stop(long start) {
+			record(System.nanoTime() - start);
+		}
+
+		@Override
+		String describe() {
+			long n = count();
+			return name + ": " + n + " timed, mean " + millis(n == 0 ? 0 : sum() / n)
+					+ ", p50 " + millis(percentile(0.5)) + ", p99 " + millis(percentile(0.99))
+					+ ", total " + millis(sum());
+		}
+
+		@Override
+		String format(long nanos) {
+			return Double.toString(nanos / 1e9);
+		}
+
+		private String millis(long nanos) {
+			return String.format(Locale.ROOT, "%.1fms", nanos / 1e6);
+		}
+	}
+
+}
@@ -0,0 +1,288 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+import se.llbit.nbt.CompoundTag;
+import se.llbit.nbt.Tag;
+
+/*
+ * Pull parser for uncompressed NBT streams.
+ * Tags are visited one at a time, so large payloads can be consumed or
+ * skipped as they are read instead of being materialized as a tag tree.
+ */
+public class NbtReader implements Closeable {
+	private static final int CHUNK_SIZE = 8192;
+
+	private final DataInputStream in;
+	private final byte[] chunk = new byte[CHUNK_SIZE];
+	private final LongBuffer longView = ByteBuffer.wrap(chunk).asLongBuffer();
+	private byte type, listType;
+	private String name;
+
+	public NbtReader(InputStream in) {
+		this.in = new DataInputStream(new BufferedInputStream(in, CHUNK_SIZE));
+	}
+
+	/*
+	 * Reads the header of the next tag in the current compound.
+	 * Returns false once the end of the compound is reached.
+	 */
+	public boolean next() throws IOException {
+		type = in.readByte();
+		if (type == Tag.TAG_END)
+			return false;
+		name = in.readUTF();
+		return true;
+	}
+
+	public byte type() {
+		return type;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public void skip() throws IOException {
+		skipPayload(type);
+	}
+
+	// copies the payload of the current tag to out as it was read
+	public void copy(DataOutputStream out) throws IOException {
+		copyPayload(type, out);
+	}
+
+	public int readInt() throws IOException {
+		switch (type) {
+		case Tag.TAG_BYTE:
+			return in.readByte();
+		case Tag.TAG_SHORT:
+			return in.readShort();
+		case Tag.TAG_INT:
+			return in.readInt();
+		case Tag.TAG_LONG:
+			return (int) in.readLong();
+		default:
+			skip();
+			return 0;
+		}
+	}
+
+	public String readString() throws IOException {
+		if (type != Tag.TAG_STRING) {
+			skip();
+			return "";
+		}
+		return in.readUTF();
+	}
+
+	public CompoundTag readCompound() throws IOException {
+		return CompoundTag.read(in).asCompound();
+	}
+
+	/*
+	 * Reads a list header and returns the number of elements.
+	 * Compound elements are then read with next() until it returns false.
+	 */
+	public int beginList() throws IOException {
+		listType = in.readByte();
+		return in.readInt();
+	}
+
+	public byte listType() {
+		return listType;
+	}
+
+	public void skipElement() throws IOException {
+		skipPayload(listType);
+	}
+
+	/*
+	 * Reads the length of a byte, int or long array.
+	 * The elements must then be consumed in full.
+	 */
+	public int beginArray() throws IOException {
+		return in.readInt();
+	}
+
+	public void readBytes(byte[] dst, int offset, int length) throws IOException {
+		in.readFully(dst, offset, length);
+	}
+
+	public byte[] readByteArray() throws IOException {
+		byte[] array = new byte[beginArray()];
+		readBytes(array, 0, array.length);
+		return array;
+	}
+
+	public void readLongs(long[] dst, int offset, int length) throws IOException {
+		int perChunk = CHUNK_SIZE / Long.BYTES;
+		while (length > 0) {
+			int n = Math.min(length, perChunk);
+			in.readFully(chunk, 0, n * Long.BYTES);
+			longView.position(0);
+			longView.get(dst, offset, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	public long[] readLongArray() throws IOException {
+		long[] array = new long[beginArray()];
+		readLongs(array, 0, array.length);
+		return array;
+	}
+
+	public int[] readIntArray() throws IOException {
+		if (type != Tag.TAG_INT_ARRAY) {
+			skip();
+			return new int[0];
+		}
+		int[] array = new int[beginArray()];
+		for (int i = 0; i < array.length; ++i)
+			array[i] = in.readInt();
+		return array;
+	}
+
+	private void skipPayload(byte tagType) throws IOException {
+		switch (tagType) {
+		case Tag.TAG_END:
+			break;
+		case Tag.TAG_BYTE:
+			skipBytes(1);
+			break;
+		case Tag.TAG_SHORT:
+			skipBytes(2);
+			break;
+		case Tag.TAG_INT:
+		case Tag.TAG_FLOAT:
+			skipBytes(4);
+			break;
+		case Tag.TAG_LONG:
+		case Tag.TAG_DOUBLE:
+			skipBytes(8);
+			break;
+		case Tag.TAG_BYTE_ARRAY:
+			skipBytes(in.readInt());
+			break;
+		case Tag.TAG_STRING:
+			skipBytes(in.readUnsignedShort());
+			break;
+		case Tag.TAG_LIST:
+			byte elementType = in.readByte();
+			int count = in.readInt();
+			for (int i = 0; i < count; ++i)
+				skipPayload(elementType);
+			break;
+		case Tag.TAG_COMPOUND:
+			byte childType;
+			while ((childType = in.readByte()) != Tag.TAG_END) {
+				skipBytes(in.readUnsignedShort());
+				skipPayload(childType);
+			}
+			break;
+		case Tag.TAG_INT_ARRAY:
+			skipBytes(in.readInt() * 4L);
+			break;
+		case Tag.TAG_LONG_ARRAY:
+			skipBytes(in.readInt() * 8L);
+			break;
+		default:
+			throw new IOException("Unknown NBT tag type " + tagType);
+		}
+	}
+
+	private void copyPayload(byte tagType, DataOutputStream out) throws IOException {
+		int length;
+		switch (tagType) {
+		case Tag.TAG_END:
+			break;
+		case Tag.TAG_BYTE:
+			copyBytes(1, out);
+			break;
+		case Tag.TAG_SHORT:
+			copyBytes(2, out);
+			break;
+		case Tag.TAG_INT:
+		case Tag.TAG_FLOAT:
+			copyBytes(4, out);
+			break;
+		case Tag.TAG_LONG:
+		case Tag.TAG_DOUBLE:
+			copyBytes(8, out);
+			break;
+		case Tag.TAG_BYTE_ARRAY:
+			out.writeInt(length = in.readInt());
+			copyBytes(length, out);
+			break;
+		case Tag.TAG_STRING:
+			out.writeShort(length = in.readUnsignedShort());
+			copyBytes(length, out);
+			break;
+		case Tag.TAG_LIST:
+			byte elementType = in.readByte();
+			int count = in.readInt();
+			out.writeByte(elementType);
+			out.writeInt(count);
+			for (int i = 0; i < count; ++i)
+				copyPayload(elementType, out);
+			break;
+		case Tag.TAG_COMPOUND:
+			byte childType;
+			while ((childType = in.readByte()) != Tag.TAG_END) {
+				out.writeByte(childType);
+				out.writeShort(length = in.readUnsignedShort());
+				copyBytes(length, out);
+				copyPayload(childType, out);
+			}
+			out.writeByte(Tag.TAG_END);
+			break;
+		case Tag.TAG_INT_ARRAY:
+			out.writeInt(length = in.readInt());
+			copyBytes(length * 4L, out);
+			break;
+		case Tag.TAG_LONG_ARRAY:
+			out.writeInt(length = in.readInt());
+			copyBytes(length * 8L, out);
+			break;
+		default:
+			throw new IOException("Unknown NBT tag type " + tagType);
+		}
+	}
+
+	private void copyBytes(long n, DataOutputStream out) throws IOException {
+		while (n > 0) {
+			int r = (int) Math.min(n, CHUNK_SIZE);
+			in.readFully(chunk, 0, r);
+			out.write(chunk, 0, r);
+			n -= r;
+		}
+	}
+
+	private void skipBytes(long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				// skip may give up early, fall back to reading
+				if (in.read() < 0)
+					throw new EOFException();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
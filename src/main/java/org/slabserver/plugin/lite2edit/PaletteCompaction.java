@@ -0,0 +1,207 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Renumbers a region's palette by how often each entry is used.
+ * Entries no block uses are dropped, entries with the same name are merged,
+ * and the most used states get the lowest ids, so up to 128 of them take one varint byte.
+ *
+ * The block data is rewritten afterwards. While every id fits a single byte,
+ * old and new, that's done in place, otherwise into a new buffer of the exact size.
+ * Tiles of a region are compacted again on their own, from a histogram of their block data.
+ */
+public class PaletteCompaction {
+	// the compacted palette, and the new id of every old id, -1 for unused ones
+	public final String[] palette;
+	public final int[] ids;
+	// blocks per new id
+	public final int[] histogram;
+
+	private PaletteCompaction(String[] palette, int[] ids, int[] histogram) {
+		this.palette = palette;
+		this.ids = ids;
+		this.histogram = histogram;
+	}
+
+	/*
+	 * histogram holds the blocks written per id, as counted by BlockStateUnpacker.
+	 * Returns null if compacting wouldn't change anything, or if blocks use ids outside of the palette.
+	 */
+	public static PaletteCompaction of(String[] palette, int[] histogram) {
+		if (histogram.length > palette.length)
+			return null;
+
+		// used names with their total count, in the order they first appear
+		Map<String, Integer> byName = new HashMap<>();
+		List<String> names = new ArrayList<>();
+		List<long[]> totals = new ArrayList<>();
+		for (int i = 0; i < histogram.length; ++i) {
+			if (histogram[i] == 0)
+				continue;
+			Integer index = byName.get(palette[i]);
+			if (index == null) {
+				index = names.size();
+				byName.put(palette[i], index);
+				names.add(palette[i]);
+				totals.add(new long[] {0, index});
+			}
+			totals.get(index)[0] += histogram[i];
+		}
+		if (names.isEmpty())
+			return null;
+
+		// most used first, ties keep their palette order
+		totals.sort((a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0]) : Long.compare(a[1], b[1]));
+		String[] compacted = new String[names.size()];
+		int[] newIdByName = new int[names.size()];
+		int[] counts = new int[names.size()];
+		for (int id = 0; id < compacted.length; ++id) {
+			int index = (int) totals.get(id)[1];
+			compacted[id] = names.get(index);
+			newIdByName[index] = id;
+			counts[id] = (int) totals.get(id)[0];
+		}
+
+		int[] ids = new int[palette.length];
+		boolean identity = compacted.length == palette.length;
+		for (int i = 0; i < palette.length; ++i) {
+			ids[i] = i < histogram.length && histogram[i] != 0 ? newIdByName[byName.get(palette[i])] : -1;
+			identity &= ids[i] == i;
+		}
+		if (identity)
+			return null;
+		return new PaletteCompaction(compacted, ids, counts);
+	}
+
+	// blocks per id in varint block data, for block data that wasn't counted while unpacking
+	public static int[] histogram(ScratchBuffer blocks, int paletteSize) {
+		int[] histogram = new int[paletteSize];
+		byte[] chunk = ResourcePool.takeBuffer();
+		int varint = 0, shift = 0;
+		try {
+			for (int position = 0; position < blocks.size(); position += chunk.length) {
+				int n = Math.min(chunk.length, blocks.size() - position);
+				blocks.read(position, chunk, 0, n);
+				for (int i = 0; i < n; ++i) {
+					byte b = chunk[i];
+					varint |= (b & 127) << shift;
+					if (b < 0) {
+						shift += 7;
+						continue;
+					}
+					if (varint >= histogram.length)
+						histogram = Arrays.copyOf(histogram, varint + 1);
+					histogram[varint]++;
+					varint = 0;
+					shift = 0;
+				}
+			}
+		} finally {
+			ResourcePool.giveBuffer(chunk);
+		}
+		return histogram;
+	}
+
+	// size of the block data once rewritten
+	public long encodedSize() {
+		long size = 0;
+		for (int id = 0; id < histogram.length; ++id)
+			size += (long) histogram[id] * varintSize(id);
+		return size;
+	}
+
+	/*
+	 * Rewrites varint block data to the new ids. Returns the buffer holding the result,
+	 * which is either the one passed in or a new one, in which case the old one is closed.
+	 */
+	public ScratchBuffer rewrite(ScratchBuffer blocks, ConversionOptions options) throws IOException {
+		if (ids.length <= 128) {
+			rewriteBytes(blocks);
+			return blocks;
+		}
+		ScratchBuffer out = ScratchBuffer.allocate(encodedSize(), options);
+		try {
+			rewriteVarints(blocks, out);
+		} catch (IOException | RuntimeException e) {
+			out.close();
+			throw e;
+		}
+		blocks.close();
+		return out;
+	}
+
+	// every old and new id is a single byte, so bytes are translated where they are
+	private void rewriteBytes(ScratchBuffer blocks) {
+		byte[] table = new byte[128];
+		for (int i = 0; i < ids.length; ++i)
+			table[i] = (byte) Math.max(0, ids[i]);
+		byte[] array = blocks.array();
+		if (array != null) {
+			for (int i = 0, n = blocks.size(); i < n; ++i)
+				array[i] = table[array[i]];
+			return;
+		}
+		byte[] chunk = ResourcePool.takeBuffer();
+		try {
+			for (int position = 0; position < blocks.size(); position += chunk.length) {
+				int n = Math.min(chunk.length, blocks.size() - position);
+				blocks.read(position, chunk, 0, n);
+				for (int i = 0; i < n; ++i)
+					chunk[i] = table[chunk[i]];
+				blocks.overwrite(position, chunk, 0, n);
+			}
+		} finally {
+			ResourcePool.giveBuffer(chunk);
+		}
+	}
+
+	private void rewriteVarints(ScratchBuffer in, ScratchBuffer out) throws IOException {
+		final int[] ids = this.ids;
+		byte[] chunk = ResourcePool.takeBuffer();
+		// a chunk of n bytes holds at most n varints, each new one takes up to 5 bytes
+		byte[] staging = new byte[chunk.length * 5];
+		int varint = 0, shift = 0;
+		try {
+			for (int position = 0; position < in.size(); position += chunk.length) {
+				int n = Math.min(chunk.length, in.size() - position);
+				in.read(position, chunk, 0, n);
+				int pos = 0;
+				for (int i = 0; i < n; ++i) {
+					byte b = chunk[i];
+					varint |= (b & 127) << shift;
+					if (b < 0) {
+						shift += 7;
+						continue;
+					}
+					int v = varint < ids.length ? Math.max(0, ids[varint]) : 0;
+					varint = 0;
+					shift = 0;
+					while ((v & ~127) != 0) {
+						staging[pos++] = (byte) (v | 128);
+						v >>>= 7;
+					}
+					staging[pos++] = (byte) v;
+				}
+				out.write(staging, 0, pos);
+			}
+		} finally {
+			ResourcePool.giveBuffer(chunk);
+		}
+	}
+
+	private static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~127) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+}
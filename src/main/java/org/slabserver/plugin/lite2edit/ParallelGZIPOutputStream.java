@@ -0,0 +1,194 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Gzip output stream that deflates fixed-size blocks on a thread pool, the way pigz does.
+ * Each block is primed with the last 32 KB of the block before it, so compression is close
+ * to a single deflate stream, and ends with a sync flush so the compressed blocks can simply
+ * be concatenated. The result is a regular single-member gzip file.
+ *
+ * Blocks are written out in order, and only a few blocks per worker are kept in flight.
+ * Block buffers and deflaters come from the ResourcePool, a block goes back once the block
+ * after it, which uses it as dictionary, has been compressed.
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream {
+	public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+	private final ExecutorService executor;
+	private final int level, blockSize, maxInFlight;
+	private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+	private final CRC32 crc = new CRC32();
+	private final LongAdder deflateNanos = new LongAdder();
+	private final ArrayDeque<byte[]> inFlightBlocks = new ArrayDeque<>();
+	private byte[] block, previous, written;
+	private int blockLength;
+	private long totalLength;
+	private boolean closed;
+
+	public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int level, int threads) throws IOException {
+		this(out, executor, level, threads, DEFAULT_BLOCK_SIZE);
+	}
+
+	public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int level, int threads, int blockSize) throws IOException {
+		super(out);
+		this.executor = executor;
+		this.level = level;
+		this.blockSize = Math.max(DICTIONARY_SIZE, blockSize);
+		this.maxInFlight = Math.max(2, threads * 2);
+		out.write(HEADER);
+		this.block = ResourcePool.takeBuffer(this.blockSize);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		block[blockLength++] = (byte) b;
+		if (blockLength == blockSize)
+			submit(false);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (len > 0) {
+			int n = Math.min(len, blockSize - blockLength);
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+			if (blockLength == blockSize)
+				submit(false);
+		}
+	}
+
+	// time the workers spent compressing, summed over all blocks
+	public long deflateNanos() {
+		return deflateNanos.sum();
+	}
+
+	// only flushes blocks that are already compressed, a partial block stays buffered
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			submit(true);
+			while (!inFlight.isEmpty())
+				writeOldest();
+			writeIntLE((int) crc.getValue());
+			writeIntLE((int) totalLength);
+			out.flush();
+		} finally {
+			// blocks of cancelled tasks may still be read, those are left to the garbage collector
+			if (inFlight.isEmpty()) {
+				ResourcePool.giveBuffer(written);
+				ResourcePool.giveBuffer(block);
+			}
+			for (Future<byte[]> future : inFlight)
+				future.cancel(true);
+			inFlight.clear();
+			inFlightBlocks.clear();
+			block = previous = written = null;
+			out.close();
+		}
+	}
+
+	private void submit(boolean last) throws IOException {
+		byte[] input = block, dictionary = previous;
+		int length = blockLength;
+		crc.update(input, 0, length);
+		totalLength += length;
+		try {
+			inFlight.add(executor.submit(() -> deflate(input, length, dictionary, last)));
+		} catch (RejectedExecutionException e) {
+			throw new IOException("Deflate executor is shut down", e);
+		}
+		inFlightBlocks.add(input);
+		previous = input;
+		block = last ? null : ResourcePool.takeBuffer(blockSize);
+		blockLength = 0;
+		if (inFlight.size() >= maxInFlight)
+			writeOldest();
+	}
+
+	private void writeOldest() throws IOException {
+		try {
+			// the future is only removed once done, close() won't recycle blocks a task may be using
+			out.write(inFlight.peekFirst().get());
+			inFlight.removeFirst();
+			// the block before this one was its dictionary and isn't needed anymore
+			ResourcePool.giveBuffer(written);
+			written = inFlightBlocks.removeFirst();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException("Deflate failed", e.getCause());
+		}
+	}
+
+	private byte[] deflate(byte[] input, int length, byte[] dictionary, boolean last) {
+		long start = System.nanoTime();
+		Deflater deflater = ResourcePool.takeDeflater(level);
+		byte[] pooled = ResourcePool.takeBuffer(outputSize(blockSize));
+		byte[] output = pooled;
+		try {
+			if (dictionary != null)
+				deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+			deflater.setInput(input, 0, length);
+			if (last)
+				deflater.finish();
+			int pos = 0;
+			while (true) {
+				if (pos == output.length)
+					output = Arrays.copyOf(output, output.length * 2);
+				int space = output.length - pos;
+				int n = deflater.deflate(output, pos, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+				pos += n;
+				if (last ? deflater.finished() : n < space)
+					break;
+			}
+			return Arrays.copyOf(output, pos);
+		} finally {
+			ResourcePool.giveDeflater(deflater);
+			ResourcePool.giveBuffer(pooled);
+			deflateNanos.add(System.nanoTime() - start);
+		}
+	}
+
+	// stored blocks bound the output size, so the buffer rarely has to grow
+	private static int outputSize(int length) {
+		return length + (length >> 4) + 64;
+	}
+
+	private void writeIntLE(int v) throws IOException {
+		out.write(v);
+		out.write(v >>> 8);
+		out.write(v >>> 16);
+		out.write(v >>> 24);
+	}
+
+}
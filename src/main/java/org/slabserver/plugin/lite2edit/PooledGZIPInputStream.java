@@ -0,0 +1,204 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/*
+ * Gzip input stream on a pooled inflater and a pooled input buffer, read the same way
+ * GZIPInputStream reads it: concatenated members are read as one stream and anything
+ * after the last member that isn't another gzip header is ignored.
+ * The inflater and buffer go back to the pool when the stream is closed.
+ */
+public class PooledGZIPInputStream extends InputStream {
+	private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+	private final InputStream in;
+	private final CRC32 crc = new CRC32();
+	private final byte[] single = new byte[1];
+	private Inflater inflater;
+	private byte[] buffer, skipBuffer;
+	// compressed bytes in buffer that haven't been given to the inflater
+	private int position, limit;
+	private long inflateNanos;
+	private boolean eof, closed;
+
+	public PooledGZIPInputStream(InputStream in) throws IOException {
+		this.in = in;
+		this.inflater = ResourcePool.takeInflater();
+		this.buffer = ResourcePool.takeBuffer();
+		try {
+			readHeader(true);
+			startMember();
+		} catch (IOException | RuntimeException e) {
+			release();
+			throw e;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		if (eof)
+			return -1;
+		if (len == 0)
+			return 0;
+		try {
+			while (true) {
+				long start = System.nanoTime();
+				int n = inflater.inflate(b, off, len);
+				inflateNanos += System.nanoTime() - start;
+				if (n > 0) {
+					crc.update(b, off, n);
+					return n;
+				}
+				if (inflater.finished()) {
+					if (!nextMember()) {
+						eof = true;
+						return -1;
+					}
+				}
+				else if (inflater.needsDictionary()) {
+					throw new ZipException("Unexpected preset dictionary");
+				}
+				else if (inflater.needsInput()) {
+					if (!fill())
+						throw new EOFException("Unexpected end of ZLIB input stream");
+					startMember();
+				}
+			}
+		} catch (DataFormatException e) {
+			String message = e.getMessage();
+			throw new ZipException(message != null ? message : "Invalid ZLIB data format");
+		}
+	}
+
+	// time spent decompressing, without waiting for input
+	public long inflateNanos() {
+		return inflateNanos;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (skipBuffer == null)
+			skipBuffer = new byte[512];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(skipBuffer, 0, (int) Math.min(n - skipped, skipBuffer.length));
+			if (read < 0)
+				break;
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		return eof ? 0 : 1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		release();
+		in.close();
+	}
+
+	private void release() {
+		ResourcePool.giveInflater(inflater);
+		ResourcePool.giveBuffer(buffer);
+		inflater = null;
+		buffer = null;
+	}
+
+	// hands the buffered compressed bytes to the inflater
+	private void startMember() {
+		inflater.setInput(buffer, position, limit - position);
+		position = limit;
+	}
+
+	// checks the trailer of the finished member and starts the next one, if there is one
+	private boolean nextMember() throws IOException {
+		position = limit - inflater.getRemaining();
+		long crcValue = readIntLE() & 0xffffffffL;
+		long size = readIntLE() & 0xffffffffL;
+		if (crcValue != crc.getValue())
+			throw new ZipException("Corrupt GZIP trailer");
+		if (size != (inflater.getBytesWritten() & 0xffffffffL))
+			throw new ZipException("Corrupt GZIP trailer");
+		if (!readHeader(false))
+			return false;
+		inflater.reset();
+		crc.reset();
+		startMember();
+		return true;
+	}
+
+	// only the first header is required, after that a missing header means the stream has ended
+	private boolean readHeader(boolean first) throws IOException {
+		if (position == limit && !fill()) {
+			if (first)
+				throw new EOFException();
+			return false;
+		}
+		if (readByte() != 0x1f || readByte() != 0x8b) {
+			if (first)
+				throw new ZipException("Not in GZIP format");
+			return false;
+		}
+		if (readByte() != Deflater.DEFLATED)
+			throw new ZipException("Unsupported compression method");
+		int flags = readByte();
+		// modification time, extra flags and operating system
+		skipBytes(6);
+		if ((flags & FEXTRA) != 0)
+			skipBytes(readByte() | readByte() << 8);
+		if ((flags & FNAME) != 0)
+			while (readByte() != 0);
+		if ((flags & FCOMMENT) != 0)
+			while (readByte() != 0);
+		if ((flags & FHCRC) != 0)
+			skipBytes(2);
+		return true;
+	}
+
+	private int readIntLE() throws IOException {
+		return readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+	}
+
+	private int readByte() throws IOException {
+		if (position == limit && !fill())
+			throw new EOFException();
+		return buffer[position++] & 0xff;
+	}
+
+	private void skipBytes(int n) throws IOException {
+		for (int i = 0; i < n; ++i)
+			readByte();
+	}
+
+	private boolean fill() throws IOException {
+		int n = in.read(buffer, 0, buffer.length);
+		if (n <= 0)
+			return false;
+		position = 0;
+		limit = n;
+		return true;
+	}
+
+}
@@ -0,0 +1,124 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Single-threaded gzip output stream on a pooled deflater and pooled buffers.
+ * Small writes are collected in the input buffer, so it needs no BufferedOutputStream on top.
+ * The deflater and buffers go back to the pool when the stream is closed.
+ */
+public class PooledGZIPOutputStream extends FilterOutputStream {
+	private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+	private final CRC32 crc = new CRC32();
+	private Deflater deflater;
+	private byte[] input, output;
+	private int inputLength;
+	private long totalLength, deflateNanos;
+	private boolean closed;
+
+	public PooledGZIPOutputStream(OutputStream out, int level) throws IOException {
+		super(out);
+		out.write(HEADER);
+		this.deflater = ResourcePool.takeDeflater(level);
+		this.input = ResourcePool.takeBuffer();
+		this.output = ResourcePool.takeBuffer();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		if (inputLength == input.length)
+			flushInput();
+		input[inputLength++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		if (len >= input.length) {
+			// large writes are deflated straight from the caller's array
+			flushInput();
+			deflate(b, off, len);
+		}
+		else {
+			if (len > input.length - inputLength)
+				flushInput();
+			System.arraycopy(b, off, input, inputLength, len);
+			inputLength += len;
+		}
+	}
+
+	// time spent compressing, including writing the compressed data
+	public long deflateNanos() {
+		return deflateNanos;
+	}
+
+	// compressed data for everything written so far is only complete once the stream is closed
+	@Override
+	public void flush() throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		flushInput();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			flushInput();
+			long start = System.nanoTime();
+			deflater.finish();
+			while (!deflater.finished())
+				out.write(output, 0, deflater.deflate(output, 0, output.length));
+			deflateNanos += System.nanoTime() - start;
+			writeIntLE((int) crc.getValue());
+			writeIntLE((int) totalLength);
+			out.flush();
+		} finally {
+			ResourcePool.giveDeflater(deflater);
+			ResourcePool.giveBuffer(input);
+			ResourcePool.giveBuffer(output);
+			deflater = null;
+			input = output = null;
+			out.close();
+		}
+	}
+
+	private void flushInput() throws IOException {
+		if (inputLength > 0) {
+			deflate(input, 0, inputLength);
+			inputLength = 0;
+		}
+	}
+
+	private void deflate(byte[] b, int off, int len) throws IOException {
+		crc.update(b, off, len);
+		totalLength += len;
+		long start = System.nanoTime();
+		deflater.setInput(b, off, len);
+		while (!deflater.needsInput()) {
+			int n = deflater.deflate(output, 0, output.length);
+			if (n > 0)
+				out.write(output, 0, n);
+		}
+		deflateNanos += System.nanoTime() - start;
+	}
+
+	private void writeIntLE(int v) throws IOException {
+		out.write(v);
+		out.write(v >>> 8);
+		out.write(v >>> 16);
+		out.write(v >>> 24);
+	}
+
+}
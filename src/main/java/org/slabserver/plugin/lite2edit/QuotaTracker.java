@@ -0,0 +1,200 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/*
+ * Bytes each user uploaded over the last 24 hours, in hourly buckets.
+ * A user's buckets are an immutable window swapped in with compare-and-set,
+ * so reserving is atomic per user without a lock, and buckets older than
+ * a day simply fall out of the window as it moves forward.
+ *
+ * The windows are kept in a text file in the plugin folder and survive restarts.
+ */
+public class QuotaTracker {
+	private static final int BUCKETS = 24;
+	private static final long BUCKET_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private final File file;
+	private final LongSupplier clock;
+	private final ConcurrentHashMap<Long, AtomicReference<Window>> users = new ConcurrentHashMap<>();
+
+	public QuotaTracker(File file) throws IOException {
+		this(file, System::currentTimeMillis);
+	}
+
+	QuotaTracker(File file, LongSupplier clock) throws IOException {
+		this.file = file;
+		this.clock = clock;
+		load();
+	}
+
+	public class Reservation {
+		public final long userId, bytes;
+		private final long bucket;
+
+		Reservation(long userId, long bytes, long bucket) {
+			this.userId = userId;
+			this.bytes = bytes;
+			this.bucket = bucket;
+		}
+
+		// gives the bytes back, for uploads that were turned away after all
+		public void release() {
+			AtomicReference<Window> window = users.get(userId);
+			if (window == null)
+				return;
+			long now = currentBucket();
+			Window current, updated;
+			do {
+				current = window.get();
+				// a retired window had nothing left to give back
+				if (current == Window.RETIRED)
+					return;
+				updated = current.add(bucket, -bytes, now);
+			} while (updated != current && !window.compareAndSet(current, updated));
+		}
+	}
+
+	/*
+	 * Reserves bytes for an upload if the user stays within limit with them.
+	 * Returns null if the upload would go over the limit.
+	 */
+	public Reservation reserve(long userId, long bytes, long limit) {
+		long now = currentBucket();
+		while (true) {
+			AtomicReference<Window> window = users.computeIfAbsent(userId, id -> new AtomicReference<>(Window.EMPTY));
+			Window current = window.get();
+			if (current == Window.RETIRED) {
+				users.remove(userId, window);
+				continue;
+			}
+			if (current.total(now) + bytes > limit)
+				return null;
+			if (window.compareAndSet(current, current.add(now, bytes, now)))
+				return new Reservation(userId, bytes, now);
+		}
+	}
+
+	public long used(long userId) {
+		AtomicReference<Window> window = users.get(userId);
+		return window == null ? 0 : window.get().total(currentBucket());
+	}
+
+	// drops users without uploads in the last day
+	public void expire() {
+		long now = currentBucket();
+		for (Map.Entry<Long, AtomicReference<Window>> entry : users.entrySet()) {
+			AtomicReference<Window> window = entry.getValue();
+			Window current = window.get();
+			// retired first, so a reservation racing with the removal can't land in a dropped window
+			if (current != Window.RETIRED && current.total(now) == 0 && window.compareAndSet(current, Window.RETIRED))
+				users.remove(entry.getKey(), window);
+		}
+	}
+
+	// one line per user, the user id followed by hour:bytes pairs
+	public void save() throws IOException {
+		long now = currentBucket();
+		List<String> lines = new ArrayList<>();
+		for (Map.Entry<Long, AtomicReference<Window>> entry : users.entrySet()) {
+			Window window = entry.getValue().get();
+			StringBuilder line = new StringBuilder().append(entry.getKey());
+			for (long bucket = now - BUCKETS + 1; bucket <= now; ++bucket) {
+				long bytes = window.get(bucket);
+				if (bytes > 0)
+					line.append('\t').append(bucket).append(':').append(bytes);
+			}
+			if (line.indexOf("\t") >= 0)
+				lines.add(line.toString());
+		}
+		Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+		File temp = new File(file.getPath() + ".tmp");
+		Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void load() throws IOException {
+		if (!file.exists())
+			return;
+		long now = currentBucket();
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			String[] fields = line.split("\t");
+			try {
+				Window window = Window.EMPTY;
+				for (int i = 1; i < fields.length; ++i) {
+					int colon = fields[i].indexOf(':');
+					window = window.add(Long.parseLong(fields[i].substring(0, colon)), Long.parseLong(fields[i].substring(colon + 1)), now);
+				}
+				if (window.total(now) > 0)
+					users.put(Long.parseLong(fields[0]), new AtomicReference<>(window));
+			} catch (NumberFormatException | IndexOutOfBoundsException e) {
+				// a damaged line only loses that user's usage
+			}
+		}
+	}
+
+	private long currentBucket() {
+		return clock.getAsLong() / BUCKET_MILLIS;
+	}
+
+	/*
+	 * Bucket i of the array holds the bytes of the latest hour h with h % BUCKETS == i,
+	 * hours records which hour that was, so stale buckets are told apart from current ones.
+	 */
+	private static final class Window {
+		static final Window EMPTY = new Window(new long[BUCKETS], new long[BUCKETS]);
+		static final Window RETIRED = new Window(new long[BUCKETS], new long[BUCKETS]);
+
+		final long[] hours, bytes;
+
+		private Window(long[] hours, long[] bytes) {
+			this.hours = hours;
+			this.bytes = bytes;
+		}
+
+		long get(long bucket) {
+			int i = (int) Math.floorMod(bucket, (long) BUCKETS);
+			return hours[i] == bucket ? bytes[i] : 0;
+		}
+
+		long total(long now) {
+			long total = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				if (hours[i] > now - BUCKETS && hours[i] <= now)
+					total += bytes[i];
+			}
+			return total;
+		}
+
+		// returns this window if the bucket is outside of it
+		Window add(long bucket, long delta, long now) {
+			if (bucket <= now - BUCKETS || bucket > now)
+				return this;
+			int i = (int) Math.floorMod(bucket, (long) BUCKETS);
+			long[] newHours = hours.clone(), newBytes = bytes.clone();
+			if (newHours[i] != bucket) {
+				newHours[i] = bucket;
+				newBytes[i] = 0;
+			}
+			newBytes[i] = Math.max(0, newBytes[i] + delta);
+			return new Window(newHours, newBytes);
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Inflaters, deflaters and I/O buffers reused between conversions.
+ * zlib state lives off-heap and is only freed once the owning object is finalized,
+ * so creating it per conversion lets native memory creep up during upload bursts.
+ *
+ * Every worker thread keeps one idle inflater and deflater. Buffers are shared between threads,
+ * since a region is read on one thread and written on another, and are pooled per size.
+ */
+public final class ResourcePool {
+	public static final int BUFFER_SIZE = 1 << 16;
+	// idle buffers kept per size, anything beyond is left to the garbage collector
+	private static final int MAX_IDLE_BUFFERS = 32;
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<>();
+	private static final ThreadLocal<PooledDeflater> deflaters = new ThreadLocal<>();
+	private static final ConcurrentMap<Integer, BlockingQueue<byte[]>> buffers = new ConcurrentHashMap<>();
+
+	private ResourcePool() {
+	}
+
+	// raw inflater, gzip headers are handled by the caller
+	public static Inflater takeInflater() {
+		Inflater inflater = inflaters.get();
+		if (inflater == null)
+			return new Inflater(true);
+		inflaters.set(null);
+		return inflater;
+	}
+
+	public static void giveInflater(Inflater inflater) {
+		if (inflaters.get() == null) {
+			inflater.reset();
+			inflaters.set(inflater);
+		}
+		else {
+			inflater.end();
+		}
+	}
+
+	// raw deflater at the given level, gzip headers are handled by the caller
+	public static Deflater takeDeflater(int level) {
+		PooledDeflater deflater = deflaters.get();
+		if (deflater != null) {
+			deflaters.set(null);
+			if (deflater.level == level)
+				return deflater;
+			// after setLevel the next deflate call only applies the level and skips the flush,
+			// a deflater at the right level is simpler than working around that everywhere
+			deflater.end();
+		}
+		return new PooledDeflater(level);
+	}
+
+	public static void giveDeflater(Deflater deflater) {
+		if (deflater instanceof PooledDeflater && deflaters.get() == null) {
+			deflater.reset();
+			deflaters.set((PooledDeflater) deflater);
+		}
+		else {
+			deflater.end();
+		}
+	}
+
+	public static byte[] takeBuffer() {
+		return takeBuffer(BUFFER_SIZE);
+	}
+
+	// buffers are not cleared, callers must not read what they haven't written
+	public static byte[] takeBuffer(int size) {
+		BlockingQueue<byte[]> idle = buffers.get(size);
+		byte[] buffer = idle == null ? null : idle.poll();
+		return buffer != null ? buffer : new byte[size];
+	}
+
+	public static void giveBuffer(byte[] buffer) {
+		if (buffer == null)
+			return;
+		buffers.computeIfAbsent(buffer.length, size -> new ArrayBlockingQueue<>(MAX_IDLE_BUFFERS)).offer(buffer);
+	}
+
+	private static class PooledDeflater extends Deflater {
+		final int level;
+
+		PooledDeflater(int level) {
+			super(level, true);
+			this.level = level;
+		}
+	}
+
+}
@@ -0,0 +1,404 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import se.llbit.nbt.CompoundTag;
+import se.llbit.nbt.ListTag;
+import se.llbit.nbt.NamedTag;
+import se.llbit.nbt.SpecificTag;
+import se.llbit.nbt.StringTag;
+import se.llbit.nbt.Tag;
+
+/*
+ * The blocks, tile entities and tile entity data removed by the sanitizer.
+ * Block rules are matched once per palette into a remap table and tile entity
+ * rules once per tile entity id into a dispatch map, so the per-block and
+ * per-tile-entity work is a table lookup. Each rule counts how often it matched.
+ *
+ * Ids are glob patterns where * matches anything and ? a single character.
+ * Patterns without a namespace match ids in any namespace.
+ */
+public class SanitizeRules {
+	// distinct tile entity ids cached, an upload full of made up ids shouldn't grow the map forever
+	private static final int MAX_DISPATCH_ENTRIES = 1024;
+
+	public final String replacement;
+	public final boolean removeEntities;
+	private final List<BlockRule> blockRules;
+	private final List<TileEntityRule> tileEntityRules;
+	private final List<DataRule> dataRules;
+	private final Map<String, TileEntityActions> dispatch = new ConcurrentHashMap<>();
+
+	public SanitizeRules(List<BlockRule> blockRules, String replacement,
+			List<TileEntityRule> tileEntityRules, List<DataRule> dataRules, boolean removeEntities) {
+		this.blockRules = new ArrayList<>(blockRules);
+		this.replacement = replacement;
+		this.tileEntityRules = new ArrayList<>(tileEntityRules);
+		this.dataRules = new ArrayList<>(dataRules);
+		this.removeEntities = removeEntities;
+	}
+
+	// op-only blocks and sign click events, the rules the sanitizer always had
+	public static SanitizeRules defaults() {
+		List<BlockRule> blocks = new ArrayList<>();
+		List<TileEntityRule> tileEntities = new ArrayList<>();
+		for (String id : defaultBlocks())
+			blocks.add(new BlockRule(id));
+		for (String id : defaultTileEntities())
+			tileEntities.add(new TileEntityRule(id));
+		List<DataRule> data = new ArrayList<>();
+		for (Map<String, String> rule : defaultData())
+			data.add(new DataRule(rule.get("id"), rule.get("path"), rule.get("contains"), rule.get("replace")));
+		return new SanitizeRules(blocks, "minecraft:stone", tileEntities, data, true);
+	}
+
+	public static List<String> defaultBlocks() {
+		return Arrays.asList("*command_block*", "*structure_block*", "*jigsaw*");
+	}
+
+	public static List<String> defaultTileEntities() {
+		return Arrays.asList("command_block", "structure_block", "jigsaw");
+	}
+
+	public static List<Map<String, String>> defaultData() {
+		List<Map<String, String>> rules = new ArrayList<>();
+		// pre 1.20 signs keep one tag per line, 1.20+ signs a list of messages per side
+		for (String path : new String[] {"Text?", "*_text.messages[]"}) {
+			Map<String, String> rule = new HashMap<>();
+			rule.put("id", "*sign");
+			rule.put("path", path);
+			rule.put("contains", "\"clickEvent\"");
+			rule.put("replace", "");
+			rules.add(rule);
+		}
+		return rules;
+	}
+
+	/*
+	 * Builds a table mapping each palette index to the index it should be written as.
+	 * If the replacement block isn't in the palette, the first matched entry is renamed to it in place.
+	 * Returns null if no rule matches the palette.
+	 */
+	public int[] remapPalette(String[] palette) {
+		boolean[] replaced = new boolean[palette.length];
+		int replacementId = -1, firstReplaced = -1;
+		for (int i = 0; i < palette.length; ++i) {
+			if (replacementId < 0 && palette[i].equals(replacement))
+				replacementId = i;
+			for (BlockRule rule : blockRules) {
+				if (rule.matches(palette[i])) {
+					rule.hits.increment();
+					replaced[i] = true;
+					if (firstReplaced < 0)
+						firstReplaced = i;
+					break;
+				}
+			}
+		}
+		if (firstReplaced < 0)
+			return null;
+
+		if (replacementId < 0) {
+			replacementId = firstReplaced;
+			palette[replacementId] = replacement;
+		}
+		int[] remap = new int[palette.length];
+		for (int i = 0; i < palette.length; ++i) {
+			remap[i] = replaced[i] ? replacementId : i;
+		}
+		return remap;
+	}
+
+	/*
+	 * Returns the tile entity unchanged, a sanitized copy,
+	 * or null if it should be removed altogether.
+	 */
+	public CompoundTag sanitizeTileEntity(CompoundTag blockEntity) {
+		String id = null;
+		int count = 0;
+		for (NamedTag namedTag : blockEntity) {
+			// both "Id" and "id" are valid in world edit apparently
+			// may be case sensitive
+			if (namedTag.name().equalsIgnoreCase("id")) {
+				id = namedTag.unpack().stringValue();
+				count++;
+			}
+		}
+		if (count != 1)
+			return null;
+
+		TileEntityActions actions = dispatch.get(id);
+		if (actions == null) {
+			actions = compile(id);
+			if (dispatch.size() < MAX_DISPATCH_ENTRIES)
+				dispatch.put(id, actions);
+		}
+		if (actions.remove != null) {
+			actions.remove.hits.increment();
+			return null;
+		}
+		CompoundTag result = blockEntity;
+		for (DataRule rule : actions.data) {
+			result = (CompoundTag) rule.apply(result, 0);
+		}
+		return result;
+	}
+
+	// identifies the rules, conversions cached with different rules aren't reused
+	public String fingerprint() {
+		StringBuilder fingerprint = new StringBuilder(replacement).append('\n').append(removeEntities);
+		for (Rule rule : rules())
+			fingerprint.append('\n').append(rule);
+		return fingerprint.toString();
+	}
+
+	public List<Rule> rules() {
+		List<Rule> rules = new ArrayList<>();
+		rules.addAll(blockRules);
+		rules.addAll(tileEntityRules);
+		rules.addAll(dataRules);
+		return rules;
+	}
+
+	private TileEntityActions compile(String id) {
+		TileEntityRule remove = null;
+		for (TileEntityRule rule : tileEntityRules) {
+			if (rule.id.matches(id)) {
+				remove = rule;
+				break;
+			}
+		}
+		List<DataRule> data = new ArrayList<>();
+		for (DataRule rule : dataRules) {
+			if (rule.id.matches(id))
+				data.add(rule);
+		}
+		return new TileEntityActions(remove, data.toArray(new DataRule[0]));
+	}
+
+	private static class TileEntityActions {
+		final TileEntityRule remove;
+		final DataRule[] data;
+
+		TileEntityActions(TileEntityRule remove, DataRule[] data) {
+			this.remove = remove;
+			this.data = data;
+		}
+	}
+
+	public abstract static class Rule {
+		final LongAdder hits = new LongAdder();
+
+		public long hits() {
+			return hits.sum();
+		}
+	}
+
+	// replaces palette entries, e.g. "*command_block*" or "minecraft:tnt[unstable=true]"
+	public static class BlockRule extends Rule {
+		private final String pattern;
+		private final IdPattern name;
+		private final Map<String, String> properties = new HashMap<>();
+
+		public BlockRule(String pattern) {
+			this.pattern = pattern;
+			int index = pattern.indexOf('[');
+			if (index > -1 && pattern.endsWith("]")) {
+				for (String property : pattern.substring(index + 1, pattern.length() - 1).split(",")) {
+					String[] pair = property.split("=", 2);
+					if (pair.length == 2)
+						properties.put(pair[0].trim(), pair[1].trim());
+				}
+				pattern = pattern.substring(0, index);
+			}
+			this.name = new IdPattern(pattern);
+		}
+
+		boolean matches(String block) {
+			int index = block.indexOf('[');
+			if (!name.matches(index > -1 ? block.substring(0, index) : block))
+				return false;
+			if (properties.isEmpty())
+				return true;
+			if (index < 0)
+				return false;
+			Map<String, String> state = new HashMap<>();
+			for (String property : block.substring(index + 1, block.length() - 1).split(",")) {
+				String[] pair = property.split("=", 2);
+				if (pair.length == 2)
+					state.put(pair[0], pair[1]);
+			}
+			for (Map.Entry<String, String> property : properties.entrySet()) {
+				if (!property.getValue().equals(state.get(property.getKey())))
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "block " + pattern;
+		}
+	}
+
+	// removes tile entities with a matching id
+	public static class TileEntityRule extends Rule {
+		private final String pattern;
+		private final IdPattern id;
+
+		public TileEntityRule(String pattern) {
+			this.pattern = pattern;
+			this.id = new IdPattern(pattern);
+		}
+
+		@Override
+		public String toString() {
+			return "tile entity " + pattern;
+		}
+	}
+
+	/*
+	 * Strips or replaces string tags inside tile entities with a matching id.
+	 * The path is a list of key patterns separated by dots, a key ending in []
+	 * applies the rest of the path to every element of that list.
+	 * When contains is set, only strings containing it are touched.
+	 * A null replacement removes the tag.
+	 */
+	public static class DataRule extends Rule {
+		private final String pattern, path, contains, replace;
+		private final IdPattern id;
+		private final Pattern[] keys;
+		private final boolean[] each;
+
+		public DataRule(String id, String path, String contains, String replace) {
+			this.pattern = id;
+			this.path = path;
+			this.contains = contains;
+			this.replace = replace;
+			this.id = new IdPattern(id);
+			String[] segments = path.split("\\.");
+			this.keys = new Pattern[segments.length];
+			this.each = new boolean[segments.length];
+			for (int i = 0; i < segments.length; ++i) {
+				String key = segments[i];
+				if (key.endsWith("[]")) {
+					each[i] = true;
+					key = key.substring(0, key.length() - 2);
+				}
+				keys[i] = IdPattern.glob(key);
+			}
+		}
+
+		// returns the same instance when nothing changed, null when the tag is stripped
+		SpecificTag apply(SpecificTag tag, int segment) {
+			if (segment == keys.length) {
+				if (!(tag instanceof StringTag))
+					return tag;
+				if (contains != null && !tag.stringValue().contains(contains))
+					return tag;
+				hits.increment();
+				return replace == null ? null : new StringTag(replace);
+			}
+			if (!(tag instanceof CompoundTag))
+				return tag;
+
+			CompoundTag compound = (CompoundTag) tag;
+			List<NamedTag> children = new ArrayList<>();
+			boolean changed = false;
+			for (NamedTag child : compound) {
+				SpecificTag value = child.unpack();
+				if (keys[segment].matcher(child.name()).matches()) {
+					SpecificTag newValue = each[segment] ? applyEach(value, segment + 1) : apply(value, segment + 1);
+					if (newValue != value) {
+						changed = true;
+						if (newValue != null)
+							children.add(new NamedTag(child.name(), newValue));
+						continue;
+					}
+				}
+				children.add(child);
+			}
+			if (!changed)
+				return tag;
+			CompoundTag newCompound = new CompoundTag();
+			for (NamedTag child : children)
+				newCompound.add(child);
+			return newCompound;
+		}
+
+		private SpecificTag applyEach(SpecificTag tag, int segment) {
+			if (!(tag instanceof ListTag))
+				return tag;
+			ListTag list = (ListTag) tag;
+			List<SpecificTag> elements = new ArrayList<>();
+			boolean changed = false;
+			for (int i = 0; i < list.size(); ++i) {
+				SpecificTag element = list.get(i);
+				SpecificTag newElement = apply(element, segment);
+				if (newElement != element)
+					changed = true;
+				if (newElement != null)
+					elements.add(newElement);
+			}
+			if (!changed)
+				return tag;
+			int type = list.size() == 0 ? Tag.TAG_END : list.get(0).tagType();
+			return new ListTag(type, elements.isEmpty() ? Collections.emptyList() : elements);
+		}
+
+		@Override
+		public String toString() {
+			return "data " + pattern + " " + path
+					+ (contains != null ? " containing " + contains : "")
+					+ (replace != null ? " -> '" + replace + "'" : " (strip)");
+		}
+	}
+
+	static class IdPattern {
+		private final Pattern pattern;
+		private final boolean namespaced;
+
+		IdPattern(String glob) {
+			this.pattern = glob(glob);
+			this.namespaced = glob.indexOf(':') > -1;
+		}
+
+		boolean matches(String id) {
+			if (!namespaced) {
+				int index = id.indexOf(':');
+				if (index > -1)
+					id = id.substring(index + 1);
+			}
+			return pattern.matcher(id).matches();
+		}
+
+		static Pattern glob(String glob) {
+			StringBuilder regex = new StringBuilder();
+			StringBuilder literal = new StringBuilder();
+			for (char c : glob.toCharArray()) {
+				if (c == '*' || c == '?') {
+					if (literal.length() > 0) {
+						regex.append(Pattern.quote(literal.toString()));
+						literal.setLength(0);
+					}
+					regex.append(c == '*' ? ".*" : ".");
+				}
+				else {
+					literal.append(c);
+				}
+			}
+			if (literal.length() > 0)
+				regex.append(Pattern.quote(literal.toString()));
+			return Pattern.compile(regex.toString());
+		}
+	}
+
+}
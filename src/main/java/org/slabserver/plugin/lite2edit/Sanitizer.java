@@ -1,19 +1,19 @@
 package org.slabserver.plugin.lite2edit;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.logging.Logger;
 
 import se.llbit.nbt.ByteArrayTag;
 import se.llbit.nbt.CompoundTag;
@@ -21,208 +21,404 @@ import se.llbit.nbt.IntTag;
 import se.llbit.nbt.ListTag;
 import se.llbit.nbt.NamedTag;
 import se.llbit.nbt.SpecificTag;
-import se.llbit.nbt.StringTag;
 import se.llbit.nbt.Tag;
 
 public class Sanitizer {
 
+	// room for the unfinished varint carried over from the previous chunk
+	private static final int MAX_CARRIED = 5;
+	private static volatile SanitizeRules rules = SanitizeRules.defaults();
+	// the plugin's logger while the server runs, so the sanitizer doesn't need Bukkit on the class path
+	private static volatile Logger logger = Logger.getLogger("Lite2Edit");
+
 	public static File sanitize(File worldEditFile) throws IOException {
-		DataInputStream inStream = new DataInputStream(new GZIPInputStream(new FileInputStream(worldEditFile)));
-		CompoundTag worldEditRoot = CompoundTag.read(inStream).asCompound();
-		inStream.close();
-		
-		worldEditRoot = sanitize(worldEditRoot);
-		DataOutputStream outStream = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(worldEditFile)));
-		worldEditRoot.write(outStream);
-		outStream.close();
-		return worldEditFile;
-	}
-
-	public static CompoundTag sanitize(CompoundTag worldEditRoot) {
-		// find blocks to remove
-		Set<Integer> blocksToRemove = new HashSet<>();
-		CompoundTag worldEdit = worldEditRoot.iterator().next().unpack().asCompound();
-		CompoundTag palette = worldEdit.get("Palette").asCompound();
-		for (NamedTag namedTag : palette) {
-			String blockName = namedTag.name();
-			int index = blockName.indexOf('[');
-			if (index > -1)
-				blockName = blockName.substring(0, index);
-			if (blockName.contains("command_block")
-					|| blockName.contains("structure_block")
-					|| blockName.contains("jigsaw")) {
-				blocksToRemove.add(namedTag.unpack().intValue());
-			}
+		return sanitize(worldEditFile, new ConversionOptions());
+	}
+
+	public static File sanitize(File worldEditFile, ConversionOptions options) throws IOException {
+		// the rewrite goes to a temp file first, so reading and replacing the same file is fine
+		try (InputStream in = new FileInputStream(worldEditFile)) {
+			return sanitize(in, worldEditFile, options);
 		}
-		
-		// find tile entities to edit or remove
-		boolean modifiedTileEntities = false;
-		ListTag blockEntities = worldEdit.get("BlockEntities").asList();
-		List<CompoundTag> newBlockEntities = new ArrayList<>();
-		for (SpecificTag specificTag : blockEntities) {
-			CompoundTag blockEntity = specificTag.asCompound();
-			String id = null;
-			int count = 0;
-			for (NamedTag namedTag : blockEntity) {
-				// both "Id" and "id" are valid in world edit apparently
-				// may be case sensitive
-				if (namedTag.name().equalsIgnoreCase("id")) {
-					id = namedTag.unpack().stringValue();
-					count++;
+	}
+
+	public static File sanitize(InputStream in, File outputFile) throws IOException {
+		return sanitize(in, outputFile, new ConversionOptions());
+	}
+
+	/*
+	 * Sanitizes a gzipped schematic read from the given stream into outputFile.
+	 * Only the palette, block entities, block data and entities are decoded,
+	 * every other tag is copied over as it was read.
+	 *
+	 * Sponge v1 and v2 keep those at the top level, v3 nests them in "Schematic" and "Blocks".
+	 * A layout the rewrite doesn't recognise fails the upload instead of being copied unsanitized.
+	 */
+	public static File sanitize(InputStream in, File outputFile, ConversionOptions options) throws IOException {
+		SanitizeRules rules = options.sanitizeRules != null ? options.sanitizeRules : Sanitizer.rules;
+		outputFile = outputFile.getAbsoluteFile();
+		Files.createDirectories(outputFile.getParentFile().toPath());
+		File tempFile = File.createTempFile("lite2edit", ".tmp", outputFile.getParentFile());
+		try {
+			long start = System.nanoTime();
+			PooledGZIPInputStream gzipIn = new PooledGZIPInputStream(in);
+			OutputStream gzipOut = Converter.gzip(new FileOutputStream(tempFile), options);
+			try (NbtReader reader = new NbtReader(gzipIn);
+					DataOutputStream out = new DataOutputStream(gzipOut)) {
+				if (!reader.next() || reader.type() != Tag.TAG_COMPOUND)
+					throw new IOException("Not a schematic");
+				// v2 names the root "Schematic", v3 leaves it unnamed
+				out.writeByte(Tag.TAG_COMPOUND);
+				out.writeUTF(reader.name());
+				SchematicRewrite rewrite = new SchematicRewrite(rules);
+				rewrite.rewrite(reader, out, SchematicRewrite.ROOT);
+				if (!rewrite.blocksRewritten)
+					throw new IOException("Not a Sponge schematic, or a layout that can't be sanitized");
+				if (rewrite.sanitized) {
+					logSanitizing();
+					options.metrics.sanitized.increment();
 				}
+				// close the root the same way CompoundTag.write does
+				out.writeByte(Tag.TAG_END);
 			}
-			if (count != 1) {
-				modifiedTileEntities = true;
-				continue;
+			// sanitizing includes parsing and copying the tags that are left alone
+			long inflateNanos = gzipIn.inflateNanos(), deflateNanos = Converter.deflateNanos(gzipOut);
+			options.metrics.inflate.record(inflateNanos);
+			options.metrics.deflate.record(deflateNanos);
+			options.metrics.sanitize.record(System.nanoTime() - start - inflateNanos - deflateNanos);
+			try {
+				Files.move(tempFile.toPath(), outputFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
 			}
-			switch (id) {
-			// Signs: remove lines containing click events
-			case "minecraft:sign":
-			case "sign":
-			case "minecraft:hanging_sign":
-			case "hanging_sign":
-				CompoundTag newBlockEntity = new CompoundTag();
-				for (NamedTag namedTag : blockEntity) {
-					String key = namedTag.name();
-					String json;
-					switch (key) {
-					// pre 1.20 format
-					case "Text1":
-					case "Text2":
-					case "Text3":
-					case "Text4":
-						json = namedTag.unpack().stringValue();
-						if (json.contains("\"clickEvent\"")) {
-							modifiedTileEntities = true;
-							newBlockEntity.add(key, new StringTag(""));
-						}
-						else
-							newBlockEntity.add(namedTag);
-						break;
-					
-					// 1.20+ format
-					case "back_text":
-					case "front_text":
-						CompoundTag text = namedTag.unpack().asCompound();
-						ListTag messages = text.get("messages").asList();
-						ListTag newMessages = new ListTag(Tag.TAG_STRING, Collections.emptyList());
-						for (int i = 0; i < messages.size(); i++) {
-							json = messages.get(i).stringValue();
-							if (json.contains("\"clickEvent\"")) {
-								modifiedTileEntities = true;
-								newMessages.add(new StringTag(""));
-							}
-							else {
-								newMessages.add(new StringTag(json));
-							}
-						}
-						
-						CompoundTag newText = new CompoundTag();
-						newText.add("messages", newMessages);
-						// copy remaining tags
-						for (NamedTag tag : text) {
-							if (!tag.name().equals("messages"))
-								newText.add(tag);
-						}
-						newBlockEntity.add(key, newText);
-						break;
-					default:
-						newBlockEntity.add(namedTag);
-						break;
+		} finally {
+			tempFile.delete();
+		}
+		return outputFile;
+	}
+
+	// rewrites a schematic as it streams from the reader to the output
+	private static class SchematicRewrite {
+		// the compound being rewritten, the root, v3's "Schematic" or v3's "Blocks"
+		static final int ROOT = 0, SCHEMATIC = 1, BLOCKS = 2;
+
+		final SanitizeRules rules;
+		// whether anything was sanitized, and whether any palette and block data were found
+		boolean sanitized, blocksRewritten;
+
+		SchematicRewrite(SanitizeRules rules) {
+			this.rules = rules;
+		}
+
+		/*
+		 * Rewrites the tags of the current compound and closes it.
+		 * Tags that are known but of the wrong type fail the rewrite, tags in "Blocks" have to be known.
+		 */
+		void rewrite(NbtReader reader, DataOutputStream out, int level) throws IOException {
+			// v3 names the block data "Data", which is something else outside of "Blocks"
+			String blockDataName = level == BLOCKS ? "Data" : "BlockData";
+			boolean paletteRead = false, blockDataRead = false;
+			int[] remap = null;
+			byte[] pendingBlocks = null;
+			while (reader.next()) {
+				String name = reader.name();
+				byte type = reader.type();
+				if ((name.equals("Schematic") && level == ROOT) || (name.equals("Blocks") && level != BLOCKS)) {
+					expect(reader, Tag.TAG_COMPOUND);
+					out.writeByte(type);
+					out.writeUTF(name);
+					rewrite(reader, out, name.equals("Blocks") ? BLOCKS : SCHEMATIC);
+				}
+				else if (name.equals("Version") && level != BLOCKS) {
+					expect(reader, Tag.TAG_INT);
+					int version = reader.readInt();
+					if (version < 1 || version > 3)
+						throw new IOException("Unsupported schematic version " + version);
+					out.writeByte(type);
+					out.writeUTF(name);
+					out.writeInt(version);
+				}
+				else if (name.equals("Palette")) {
+					expect(reader, Tag.TAG_COMPOUND);
+					CompoundTag palette = reader.readCompound();
+					String[] blockPalette = paletteById(palette);
+					remap = rules.remapPalette(blockPalette);
+					sanitized |= remap != null;
+					paletteRead = true;
+					new NamedTag("Palette", renamePalette(palette, blockPalette)).write(out);
+					if (pendingBlocks != null) {
+						writeBlockData(out, blockDataName, remapBlockData(pendingBlocks, remap));
+						pendingBlocks = null;
 					}
 				}
-				newBlockEntities.add(newBlockEntity);
-				break;
-			
-			// Remove OP-only blocks
-			case "minecraft:command_block":
-			case "command_block":
-			case "minecraft:structure_block":
-			case "structure_block":
-			case "minecraft:jigsaw":
-			case "jigsaw":
-				modifiedTileEntities = true;
-				break;
-			
-			// other tile entities are copied without modifications
-			default:
-				newBlockEntities.add(blockEntity);
-				break;
+				else if (name.equals("BlockEntities") || (name.equals("TileEntities") && level != BLOCKS)) {
+					// Sponge v1 calls them tile entities
+					expect(reader, Tag.TAG_LIST);
+					rewriteBlockEntities(reader, out, name, level == BLOCKS);
+				}
+				else if (name.equals(blockDataName)) {
+					expect(reader, Tag.TAG_BYTE_ARRAY);
+					if (blockDataRead)
+						throw new IOException("Schematic has more than one " + name);
+					blockDataRead = true;
+					// block data can only be remapped once the palette is known
+					if (paletteRead)
+						copyBlockData(reader, out, blockDataName, remap);
+					else
+						pendingBlocks = reader.readByteArray();
+				}
+				else if (name.equals("Entities") && level != BLOCKS) {
+					// remove entities to avoid falling block exploits
+					if (rules.removeEntities) {
+						reader.skip();
+						continue;
+					}
+					out.writeByte(type);
+					out.writeUTF(name);
+					reader.copy(out);
+				}
+				else if (level == BLOCKS) {
+					throw new IOException("Unknown tag in schematic blocks: " + name);
+				}
+				else {
+					out.writeByte(type);
+					out.writeUTF(name);
+					reader.copy(out);
+				}
 			}
+			if (pendingBlocks != null)
+				throw new IOException("Schematic block data without a palette");
+			blocksRewritten |= paletteRead && blockDataRead;
+			out.writeByte(Tag.TAG_END);
 		}
-		
-		if (modifiedTileEntities || !blocksToRemove.isEmpty())
-			Lite2Edit.getInstance().getLogger().info("Sanitizing schematic");
-		
-		byte[] blocks = worldEdit.get("BlockData").byteArray();
-		if (!blocksToRemove.isEmpty()) {
-			// check if stone is in the palette already
-			// if not, replace first blacklisted block with stone
-			Integer stoneId = null;
-			for (NamedTag namedTag : palette) {
-				if (namedTag.isNamed("minecraft:stone")) {
-					stoneId = namedTag.unpack().intValue();
-					break;
+
+		private void rewriteBlockEntities(NbtReader reader, DataOutputStream out, String name, boolean nested) throws IOException {
+			List<SpecificTag> newBlockEntities = new ArrayList<>();
+			int count = reader.beginList();
+			for (int i = 0; i < count; ++i) {
+				if (reader.listType() != Tag.TAG_COMPOUND) {
+					// not a valid block entity, drop it
+					reader.skipElement();
+					sanitized = true;
+					continue;
 				}
+				CompoundTag blockEntity = reader.readCompound();
+				CompoundTag newBlockEntity = nested ? sanitizeNested(blockEntity) : rules.sanitizeTileEntity(blockEntity);
+				if (newBlockEntity != blockEntity)
+					sanitized = true;
+				if (newBlockEntity != null)
+					newBlockEntities.add(newBlockEntity);
 			}
-			if (stoneId == null) {
-				CompoundTag newPalette = new CompoundTag();
-				for (NamedTag tag : palette) {
-					int blockId = tag.unpack().intValue();
-					if (stoneId == null && blocksToRemove.contains(blockId)) {
-						newPalette.add("minecraft:stone", new IntTag(blockId));
-						stoneId = blockId;
-					}
-					else {
-						newPalette.add(tag);
-					}
+			new NamedTag(name, new ListTag(Tag.TAG_COMPOUND, newBlockEntities)).write(out);
+		}
+
+		/*
+		 * v3 keeps a block entity's own tags in "Data", next to "Pos" and "Id".
+		 * The rules see them together with the id, the way they see a v2 block entity.
+		 * Returns the block entity itself if nothing changed, null if it's removed.
+		 */
+		private CompoundTag sanitizeNested(CompoundTag blockEntity) {
+			CompoundTag flat = new CompoundTag();
+			CompoundTag data = null;
+			String id = null;
+			for (NamedTag tag : blockEntity) {
+				if (tag.name().equals("Data")) {
+					// anything but a single compound isn't a v3 block entity
+					if (data != null || !tag.unpack().isCompoundTag())
+						return null;
+					data = tag.unpack().asCompound();
+				}
+				else if (tag.name().equalsIgnoreCase("id")) {
+					id = tag.unpack().stringValue();
+					flat.add(tag);
 				}
-				palette = newPalette;
 			}
-			
-			// replace blacklisted blocks with stone
-			byte[] newBlocks = new byte[blocks.length * 2];
-			int j = 0;
-			for (int i = 0; i < blocks.length; ) {
-				int block, blockToAdd;
-				if (blocks[i] < 0)
-					block = (blocks[i++] & 127) + (blocks[i++] * 128);
-				else
-					block = blocks[i++];
-				if (blocksToRemove.contains(block))
-					blockToAdd = stoneId;
-				else
-					blockToAdd = block;
-				
-				if (block > 127) {
-					newBlocks[j++] = (byte) (blockToAdd | 128);
-					newBlocks[j++] = (byte) (blockToAdd / 128);
+			if (data != null) {
+				for (NamedTag tag : data) {
+					// a copy of the id in the data is the same block entity, a different one is left for the rules to refuse
+					if (tag.name().equalsIgnoreCase("id") && tag.unpack().stringValue().equals(id))
+						continue;
+					flat.add(tag);
 				}
-				else {
-					newBlocks[j++] = (byte) blockToAdd;
+			}
+			CompoundTag result = rules.sanitizeTileEntity(flat);
+			if (result == flat)
+				return blockEntity;
+			if (result == null)
+				return null;
+			CompoundTag newData = new CompoundTag();
+			for (NamedTag tag : result) {
+				if (!tag.name().equalsIgnoreCase("id"))
+					newData.add(tag);
+			}
+			CompoundTag newBlockEntity = new CompoundTag();
+			for (NamedTag tag : blockEntity) {
+				if (!tag.name().equals("Data"))
+					newBlockEntity.add(tag);
+			}
+			newBlockEntity.add("Data", newData);
+			return newBlockEntity;
+		}
+
+		private static void expect(NbtReader reader, int type) throws IOException {
+			if (reader.type() != type)
+				throw new IOException("Schematic tag " + reader.name() + " has an unexpected type");
+		}
+	}
+
+	/*
+	 * Streams block data from reader to out, replacing remapped ids as they pass.
+	 * Replacements are padded to the width of the id they replace so the array
+	 * keeps its length, otherwise the whole array has to be re-encoded.
+	 */
+	private static void copyBlockData(NbtReader reader, DataOutputStream out, String name, int[] remap) throws IOException {
+		if (remap != null && !keepsWidth(remap)) {
+			writeBlockData(out, name, remapBlockData(reader.readByteArray(), remap));
+			return;
+		}
+		int remaining = reader.beginArray();
+		out.writeByte(Tag.TAG_BYTE_ARRAY);
+		out.writeUTF(name);
+		out.writeInt(remaining);
+		byte[] chunk = ResourcePool.takeBuffer();
+		int carried = 0;
+		while (remaining > 0) {
+			int n = Math.min(remaining, chunk.length - MAX_CARRIED);
+			reader.readBytes(chunk, carried, n);
+			remaining -= n;
+			int end = carried + n;
+			int done = remap == null ? end : remapInPlace(chunk, end, remap);
+			out.write(chunk, 0, done);
+			carried = end - done;
+			System.arraycopy(chunk, done, chunk, 0, carried);
+		}
+		// a truncated varint at the very end is copied as it is
+		out.write(chunk, 0, carried);
+		ResourcePool.giveBuffer(chunk);
+	}
+
+	// remaps every complete varint in buf and returns where the first incomplete one starts
+	private static int remapInPlace(byte[] buf, int end, int[] remap) {
+		int i = 0;
+		while (i < end) {
+			int start = i, v = 0, shift = 0;
+			boolean complete = false;
+			while (i < end) {
+				byte b = buf[i++];
+				v |= (b & 127) << shift;
+				shift += 7;
+				if (b >= 0) {
+					complete = true;
+					break;
+				}
+			}
+			if (!complete)
+				return start;
+			if (v >= 0 && v < remap.length && remap[v] != v) {
+				int id = remap[v];
+				for (int k = start; k < i - 1; ++k) {
+					buf[k] = (byte) (id | 128);
+					id >>>= 7;
 				}
+				buf[i - 1] = (byte) id;
 			}
-			blocks = Arrays.copyOf(newBlocks, j);
-		}
-		
-		CompoundTag newWorldEdit = new CompoundTag();
-		newWorldEdit.add("Palette", palette);
-		newWorldEdit.add("BlockEntities", new ListTag(Tag.TAG_COMPOUND, newBlockEntities));
-		newWorldEdit.add("BlockData", new ByteArrayTag(blocks));
-		for (NamedTag namedTag : worldEdit) {
-			switch (namedTag.name()) {
-			case "Palette":
-			case "BlockEntities":
-			case "BlockData":
-			case "Entities": // remove entities to avoid falling block exploits
-				continue;
-			default:
-				newWorldEdit.add(namedTag);
+		}
+		return end;
+	}
+
+	private static byte[] remapBlockData(byte[] blocks, int[] remap) {
+		if (remap == null)
+			return blocks;
+		if (keepsWidth(remap)) {
+			remapInPlace(blocks, blocks.length, remap);
+			return blocks;
+		}
+		byte[] newBlocks = new byte[blocks.length];
+		int j = 0;
+		for (int i = 0; i < blocks.length; ) {
+			int v = 0, shift = 0;
+			byte b;
+			do {
+				b = blocks[i++];
+				v |= (b & 127) << shift;
+				shift += 7;
+			} while (b < 0 && i < blocks.length);
+			if (v >= 0 && v < remap.length)
+				v = remap[v];
+			if (j + 5 > newBlocks.length)
+				newBlocks = Arrays.copyOf(newBlocks, newBlocks.length + Math.max(16, newBlocks.length / 2));
+			while ((v & ~127) != 0) {
+				newBlocks[j++] = (byte) (v | 128);
+				v >>>= 7;
 			}
+			newBlocks[j++] = (byte) v;
 		}
-		CompoundTag newWorldEditRoot = new CompoundTag();
-		newWorldEditRoot.add("Schematic", newWorldEdit);
-		return newWorldEditRoot;
+		return Arrays.copyOf(newBlocks, j);
+	}
+
+	// whether every replacement fits in the bytes of the id it replaces
+	private static boolean keepsWidth(int[] remap) {
+		for (int i = 0; i < remap.length; ++i) {
+			if (varintSize(remap[i]) > varintSize(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static int varintSize(int v) {
+		int size = 1;
+		while ((v & ~127) != 0) {
+			v >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private static void writeBlockData(DataOutputStream out, String name, byte[] blocks) throws IOException {
+		new NamedTag(name, new ByteArrayTag(blocks)).write(out);
+	}
+
+	// palette names indexed by WorldEdit id, ids don't have to be contiguous
+	private static String[] paletteById(CompoundTag palette) {
+		int maxId = -1;
+		for (NamedTag namedTag : palette)
+			maxId = Math.max(maxId, namedTag.unpack().intValue());
+		String[] blockPalette = new String[maxId + 1];
+		Arrays.fill(blockPalette, "");
+		for (NamedTag namedTag : palette) {
+			int id = namedTag.unpack().intValue();
+			if (id >= 0)
+				blockPalette[id] = namedTag.name();
+		}
+		return blockPalette;
+	}
+
+	// picks up entries renamed by remapPalette
+	private static CompoundTag renamePalette(CompoundTag palette, String[] blockPalette) {
+		CompoundTag newPalette = new CompoundTag();
+		for (NamedTag namedTag : palette) {
+			int id = namedTag.unpack().intValue();
+			newPalette.add(id >= 0 ? blockPalette[id] : namedTag.name(), new IntTag(id));
+		}
+		return newPalette;
+	}
+
+	public static SanitizeRules getRules() {
+		return rules;
+	}
+
+	// takes effect for conversions started afterwards
+	public static void setRules(SanitizeRules rules) {
+		Sanitizer.rules = rules;
+	}
+
+	public static void setLogger(Logger logger) {
+		Sanitizer.logger = logger;
+	}
+
+	static void logSanitizing() {
+		logger.info("Sanitizing schematic");
 	}
 
 }
@@ -0,0 +1,130 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Puts converted schematics in the WorldEdit and FastAsyncWorldEdit schematic folders.
+ * Files are hard linked where the file system allows it and copied otherwise.
+ *
+ * A name in the WorldEdit folder is taken by creating the link or file with CREATE_NEW semantics,
+ * so concurrent uploads can't end up with the same name. Taken names get a "(n)" suffix,
+ * the highest suffix per name is remembered so finding a free one doesn't probe the folder.
+ */
+public class SchematicDelivery {
+	private static final Pattern SUFFIXED = Pattern.compile("(.*)\\((\\d{1,9})\\)(\\.[^.]*)?");
+
+	private final Path worldEditDir, faweDir;
+	private final Map<String, Integer> suffixes = new HashMap<>();
+	private boolean indexed;
+	private volatile boolean linksSupported = true;
+
+	public SchematicDelivery(File pluginsDir) {
+		this.worldEditDir = new File(pluginsDir, "WorldEdit/schematics").toPath();
+		this.faweDir = new File(pluginsDir, "FastAsyncWorldEdit/schematics").toPath();
+	}
+
+	// returns the file in the WorldEdit folder, which may have been renamed
+	public File deliver(File file) throws IOException {
+		Files.createDirectories(worldEditDir);
+		Files.createDirectories(faweDir);
+		Path destination = reserve(file.toPath());
+
+		// FAWE gets the same name, replacing whatever was there
+		Path fawe = faweDir.resolve(destination.getFileName());
+		Files.deleteIfExists(fawe);
+		try {
+			place(destination, fawe);
+		} catch (FileAlreadyExistsException e) {
+			Files.copy(destination, fawe, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return destination.toFile();
+	}
+
+	private Path reserve(Path source) throws IOException {
+		String name = source.getFileName().toString();
+		int index = name.lastIndexOf('.');
+		String base = index < 0 ? name : name.substring(0, index);
+		String extension = index < 0 ? "" : name.substring(index);
+		Path candidate = worldEditDir.resolve(name);
+		while (true) {
+			try {
+				place(source, candidate);
+				return candidate;
+			} catch (FileAlreadyExistsException e) {
+				candidate = worldEditDir.resolve(base + "(" + nextSuffix(base, extension) + ")" + extension);
+			}
+		}
+	}
+
+	private synchronized int nextSuffix(String base, String extension) throws IOException {
+		if (!indexed) {
+			// files from before the server started, or put there by hand
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(worldEditDir)) {
+				for (Path file : files) {
+					Matcher matcher = SUFFIXED.matcher(file.getFileName().toString());
+					if (matcher.matches()) {
+						String key = matcher.group(1) + (matcher.group(3) == null ? "" : matcher.group(3));
+						suffixes.merge(key, Integer.parseInt(matcher.group(2)), Math::max);
+					}
+				}
+			}
+			indexed = true;
+		}
+		return suffixes.merge(base + extension, 1, Integer::sum);
+	}
+
+	// creates target from source, failing with FileAlreadyExistsException if the name is taken
+	private void place(Path source, Path target) throws IOException {
+		if (linksSupported) {
+			try {
+				Files.createLink(target, source);
+				return;
+			} catch (FileAlreadyExistsException e) {
+				throw e;
+			} catch (UnsupportedOperationException e) {
+				// no hard links at all
+				linksSupported = false;
+			} catch (IOException e) {
+				// anything else, such as a full disk, only falls back to a copy for this file
+				if (linksUnsupported(e))
+					linksSupported = false;
+			}
+		}
+		try (OutputStream out = Files.newOutputStream(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			Files.copy(source, out);
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (IOException e) {
+			Files.deleteIfExists(target);
+			throw e;
+		}
+	}
+
+	/*
+	 * Whether a failed link means no file will link, because the folders are on different file systems
+	 * or the file system has no hard links. Those are reported as a plain FileSystemException,
+	 * its subclasses, such as NoSuchFileException or AccessDeniedException, are about the one file.
+	 */
+	private static boolean linksUnsupported(IOException e) {
+		if (e.getClass() != FileSystemException.class)
+			return false;
+		String reason = String.valueOf(((FileSystemException) e).getReason()).toLowerCase(Locale.ROOT);
+		return reason.contains("cross-device") || reason.contains("different disk")
+				|| reason.contains("not permitted") || reason.contains("not supported");
+	}
+
+}
@@ -0,0 +1,35 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.IOException;
+
+/*
+ * Thrown when a schematic has more blocks than a conversion is allowed to handle.
+ * The message is meant for the uploader.
+ */
+public class SchematicTooLargeException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public SchematicTooLargeException(String message) {
+		super(message);
+	}
+
+	static void check(long blocks, long maxBlocks) throws SchematicTooLargeException {
+		if (blocks > maxBlocks)
+			throw new SchematicTooLargeException("it has " + blocks + " blocks, the limit is " + maxBlocks);
+	}
+
+	// blocks in a box of the given size, refused if the count doesn't fit in a long
+	static long volume(long x, long y, long z) throws SchematicTooLargeException {
+		return multiply(multiply(Math.abs(x), y), z);
+	}
+
+	// a block count times one more dimension, so a crafted size can't wrap around to a small or negative count
+	static long multiply(long blocks, long dimension) throws SchematicTooLargeException {
+		try {
+			return Math.multiplyExact(blocks, Math.abs(dimension));
+		} catch (ArithmeticException e) {
+			throw new SchematicTooLargeException("it has more blocks than can be counted");
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.llbit.nbt.CompoundTag;
+import se.llbit.nbt.IntArrayTag;
+import se.llbit.nbt.IntTag;
+import se.llbit.nbt.ListTag;
+import se.llbit.nbt.NamedTag;
+import se.llbit.nbt.ShortTag;
+import se.llbit.nbt.SpecificTag;
+import se.llbit.nbt.Tag;
+
+/*
+ * Writes a converted region as a Sponge schematic.
+ * The small tags are written as a tag tree, the block data is streamed from the
+ * region's scratch buffer after its header, so it is never copied into a tag.
+ *
+ * Block entities are passed in v2 form, with "Pos" and "Id" next to their other tags.
+ */
+public abstract class SchematicWriter {
+	public static final SchematicWriter V2 = new V2();
+	public static final SchematicWriter V3 = new V3();
+	// first data version WorldEdit writes v3 schematics for, 1.20.4
+	public static final int V3_DATA_VERSION = 3700;
+
+	public abstract int version();
+
+	public abstract void write(DataOutputStream out, int dataVersion, int[] size, int[] offset,
+			String[] palette, List<CompoundTag> blockEntities, ScratchBuffer blockData) throws IOException;
+
+	/*
+	 * The writer for the given Sponge version, 0 picks the one
+	 * WorldEdit itself writes for the schematic's data version.
+	 */
+	public static SchematicWriter forVersion(int version, int dataVersion) {
+		switch (version) {
+		case 2:
+			return V2;
+		case 3:
+			return V3;
+		default:
+			return dataVersion >= V3_DATA_VERSION ? V3 : V2;
+		}
+	}
+
+	static CompoundTag palette(String[] palette) {
+		CompoundTag wePalette = new CompoundTag();
+		for (int i = 0; i < palette.length; ++i) {
+			wePalette.add(palette[i], new IntTag(i));
+		}
+		return wePalette;
+	}
+
+	static CompoundTag metadata(int[] offset) {
+		CompoundTag metadata = new CompoundTag();
+		metadata.add("WEOffsetX", new IntTag(offset[0]));
+		metadata.add("WEOffsetY", new IntTag(offset[1]));
+		metadata.add("WEOffsetZ", new IntTag(offset[2]));
+		return metadata;
+	}
+
+	static void writeBlockData(DataOutputStream out, String name, ScratchBuffer blockData) throws IOException {
+		out.writeByte(Tag.TAG_BYTE_ARRAY);
+		out.writeUTF(name);
+		out.writeInt(blockData.size());
+		blockData.writeTo(out);
+	}
+
+	// version 2, palette, block data and block entities at the top level
+	private static class V2 extends SchematicWriter {
+
+		@Override
+		public int version() {
+			return 2;
+		}
+
+		@Override
+		public void write(DataOutputStream out, int dataVersion, int[] size, int[] offset,
+				String[] palette, List<CompoundTag> blockEntities, ScratchBuffer blockData) throws IOException {
+			CompoundTag wePalette = palette(palette);
+			CompoundTag worldEdit = new CompoundTag();
+			worldEdit.add(new NamedTag("Metadata", metadata(offset)));
+			worldEdit.add(new NamedTag("Palette", wePalette));
+			worldEdit.add(new NamedTag("BlockEntities", new ListTag(Tag.TAG_COMPOUND, blockEntities)));
+			worldEdit.add(new NamedTag("DataVersion", new IntTag(dataVersion)));
+			worldEdit.add(new NamedTag("Height", new ShortTag((short) size[1])));
+			worldEdit.add(new NamedTag("Length", new ShortTag((short) size[2])));
+			worldEdit.add(new NamedTag("PaletteMax", new IntTag(wePalette.size())));
+			worldEdit.add(new NamedTag("Version", new IntTag(2)));
+			worldEdit.add(new NamedTag("Width", new ShortTag((short) size[0])));
+			worldEdit.add(new NamedTag("Offset", new IntArrayTag(new int[3])));
+
+			out.writeByte(Tag.TAG_COMPOUND);
+			out.writeUTF("Schematic");
+			for (NamedTag tag : worldEdit) {
+				tag.write(out);
+			}
+			writeBlockData(out, "BlockData", blockData);
+			out.writeByte(Tag.TAG_END);
+			// close the root the same way CompoundTag.write does
+			out.writeByte(Tag.TAG_END);
+		}
+	}
+
+	// version 3, an unnamed root holding the schematic, which nests the blocks under "Blocks"
+	private static class V3 extends SchematicWriter {
+
+		@Override
+		public int version() {
+			return 3;
+		}
+
+		@Override
+		public void write(DataOutputStream out, int dataVersion, int[] size, int[] offset,
+				String[] palette, List<CompoundTag> blockEntities, ScratchBuffer blockData) throws IOException {
+			CompoundTag worldEdit = new CompoundTag();
+			worldEdit.add(new NamedTag("DataVersion", new IntTag(dataVersion)));
+			worldEdit.add(new NamedTag("Height", new ShortTag((short) size[1])));
+			worldEdit.add(new NamedTag("Length", new ShortTag((short) size[2])));
+			worldEdit.add(new NamedTag("Version", new IntTag(3)));
+			worldEdit.add(new NamedTag("Width", new ShortTag((short) size[0])));
+			// v3 readers place the blocks at "Offset" from WorldEdit's origin, which is zero when left out
+			worldEdit.add(new NamedTag("Offset", new IntArrayTag(offset.clone())));
+
+			CompoundTag blocks = new CompoundTag();
+			blocks.add(new NamedTag("Palette", palette(palette)));
+			blocks.add(new NamedTag("BlockEntities", new ListTag(Tag.TAG_COMPOUND, blockEntities(blockEntities))));
+
+			out.writeByte(Tag.TAG_COMPOUND);
+			out.writeUTF("");
+			out.writeByte(Tag.TAG_COMPOUND);
+			out.writeUTF("Schematic");
+			for (NamedTag tag : worldEdit) {
+				tag.write(out);
+			}
+			out.writeByte(Tag.TAG_COMPOUND);
+			out.writeUTF("Blocks");
+			for (NamedTag tag : blocks) {
+				tag.write(out);
+			}
+			writeBlockData(out, "Data", blockData);
+			// blocks, schematic and root
+			out.writeByte(Tag.TAG_END);
+			out.writeByte(Tag.TAG_END);
+			out.writeByte(Tag.TAG_END);
+			// close the outer root the same way CompoundTag.write does
+			out.writeByte(Tag.TAG_END);
+		}
+
+		// v3 keeps everything but "Pos" and "Id" in a "Data" compound
+		private static List<SpecificTag> blockEntities(List<CompoundTag> blockEntities) {
+			List<SpecificTag> v3BlockEntities = new ArrayList<>(blockEntities.size());
+			for (CompoundTag blockEntity : blockEntities) {
+				CompoundTag v3BlockEntity = new CompoundTag();
+				CompoundTag data = new CompoundTag();
+				for (NamedTag tag : blockEntity) {
+					if (tag.name().equals("Pos") || tag.name().equals("Id"))
+						v3BlockEntity.add(tag);
+					else
+						data.add(tag);
+				}
+				v3BlockEntity.add("Data", data);
+				v3BlockEntities.add(v3BlockEntity);
+			}
+			return v3BlockEntities;
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/*
+ * Growable buffer for a region's WorldEdit varint block data.
+ * Small buffers live on the heap, buffers above the configured threshold
+ * are memory-mapped from a private file in the scratch directory.
+ * Heap buffers are taken from the memory budget, once it runs out they're mapped as well.
+ */
+public class ScratchBuffer implements Closeable {
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	private final long mapThreshold;
+	private final File scratchDir;
+	private final MemoryBudget budget;
+	// heap bytes taken from the budget
+	private long reserved;
+	private byte[] array;
+	private File file;
+	private RandomAccessFile raf;
+	private MappedByteBuffer mapped;
+	private int capacity, position;
+
+	private ScratchBuffer(ConversionOptions options) {
+		this.mapThreshold = options.scratchMapThreshold;
+		this.scratchDir = options.scratchDir;
+		this.budget = options.memoryBudget;
+	}
+
+	public static ScratchBuffer allocate(long capacity, ConversionOptions options) throws IOException {
+		ScratchBuffer buffer = new ScratchBuffer(options);
+		buffer.ensureCapacity(capacity);
+		return buffer;
+	}
+
+	public void ensureCapacity(long minCapacity) throws IOException {
+		if (minCapacity <= capacity && (array != null || mapped != null))
+			return;
+		if (minCapacity > MAX_CAPACITY)
+			throw new IOException("Block data too large: " + minCapacity + " bytes");
+		int newCapacity = (int) Math.min(MAX_CAPACITY, Math.max(minCapacity, capacity + (capacity >> 1)));
+
+		if (mapped == null && newCapacity <= mapThreshold && budget.tryReserve(newCapacity - reserved)) {
+			array = array == null ? new byte[newCapacity] : Arrays.copyOf(array, newCapacity);
+			reserved = newCapacity;
+		}
+		else {
+			if (raf == null) {
+				Files.createDirectories(scratchDir.toPath());
+				file = File.createTempFile("lite2edit", ".scratch", scratchDir);
+				raf = new RandomAccessFile(file, "rw");
+			}
+			// mapping a larger size grows the file, the old contents carry over
+			mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+			if (array != null) {
+				mapped.put(array, 0, position);
+				array = null;
+			}
+			budget.release(reserved);
+			reserved = 0;
+		}
+		capacity = newCapacity;
+	}
+
+	public void write(int b) throws IOException {
+		if (position == capacity)
+			ensureCapacity(capacity + 1L);
+		if (array != null)
+			array[position] = (byte) b;
+		else
+			mapped.put(position, (byte) b);
+		position++;
+	}
+
+	public void write(byte[] b, int offset, int length) throws IOException {
+		ensureCapacity((long) position + length);
+		if (array != null) {
+			System.arraycopy(b, offset, array, position, length);
+		}
+		else {
+			mapped.position(position);
+			mapped.put(b, offset, length);
+		}
+		position += length;
+	}
+
+	public int size() {
+		return position;
+	}
+
+	// sets the number of valid bytes after writing to array() directly
+	public void setSize(int size) {
+		position = size;
+	}
+
+	// backing array, or null when the buffer is memory-mapped
+	public byte[] array() {
+		return array;
+	}
+
+	// copies bytes starting at position into dst
+	public void read(int position, byte[] dst, int offset, int length) {
+		if (array != null) {
+			System.arraycopy(array, position, dst, offset, length);
+		}
+		else {
+			mapped.position(position);
+			mapped.get(dst, offset, length);
+		}
+	}
+
+	// replaces bytes starting at position, which has to be within the bytes written so far
+	public void overwrite(int position, byte[] src, int offset, int length) {
+		if (position + length > this.position)
+			throw new IndexOutOfBoundsException("Overwriting past the end of the buffer");
+		if (array != null) {
+			System.arraycopy(src, offset, array, position, length);
+		}
+		else {
+			mapped.position(position);
+			mapped.put(src, offset, length);
+		}
+	}
+
+	public byte[] toByteArray() {
+		if (array != null)
+			return position == array.length ? array : Arrays.copyOf(array, position);
+		byte[] bytes = new byte[position];
+		mapped.position(0);
+		mapped.get(bytes);
+		return bytes;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		if (array != null) {
+			out.write(array, 0, position);
+			return;
+		}
+		byte[] chunk = ResourcePool.takeBuffer();
+		mapped.position(0);
+		for (int remaining = position; remaining > 0; ) {
+			int n = Math.min(remaining, chunk.length);
+			mapped.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+			remaining -= n;
+		}
+		ResourcePool.giveBuffer(chunk);
+	}
+
+	@Override
+	public void close() throws IOException {
+		array = null;
+		budget.release(reserved);
+		reserved = 0;
+		mapped = null;
+		if (raf != null) {
+			raf.close();
+			raf = null;
+			// a mapping can outlive its channel until it is collected,
+			// some platforms refuse to delete the file before that
+			if (!file.delete())
+				file.deleteOnExit();
+		}
+	}
+
+}
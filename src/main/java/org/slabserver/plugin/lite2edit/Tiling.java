@@ -0,0 +1,231 @@
+package org.slabserver.plugin.lite2edit;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/*
+ * A grid of tiles a region is split into, so every tile stays under a maximum volume
+ * and its dimensions fit the short Width, Height and Length tags.
+ *
+ * Tiles are kept full height where the volume allows it, the longer horizontal side is halved
+ * until they fit, so each tile can be pasted on its own without building up layer by layer.
+ */
+public class Tiling {
+	// Sponge dimensions are shorts, some readers treat them as signed
+	public static final int MAX_DIMENSION = Short.MAX_VALUE;
+
+	// region size, tile size and number of tiles along x, y and z
+	public final int[] size, tileSize, tiles;
+	private final int count;
+
+	private Tiling(int[] size, int[] tileSize) throws SchematicTooLargeException {
+		this.size = size;
+		this.tileSize = tileSize;
+		this.tiles = new int[3];
+		for (int axis = 0; axis < 3; ++axis)
+			tiles[axis] = (int) Math.max(1, ((long) size[axis] + tileSize[axis] - 1) / tileSize[axis]);
+		// tiles are numbered and collected with ints, a grid with more of them can't be written
+		long count = SchematicTooLargeException.volume(tiles[0], tiles[1], tiles[2]);
+		if (count > Integer.MAX_VALUE - 8)
+			throw new SchematicTooLargeException("it would take " + count + " schematics");
+		this.count = (int) count;
+	}
+
+	/*
+	 * size has to be positive, a maximum volume of 0 or less only enforces MAX_DIMENSION.
+	 * Refuses sizes that would take more tiles than can be numbered.
+	 */
+	public static Tiling plan(int[] size, long maxVolume) throws SchematicTooLargeException {
+		int[] tileSize = new int[3];
+		for (int axis = 0; axis < 3; ++axis)
+			tileSize[axis] = Math.max(1, Math.min(size[axis], MAX_DIMENSION));
+		if (maxVolume > 0) {
+			while ((long) tileSize[0] * tileSize[1] * tileSize[2] > maxVolume) {
+				int axis = tileSize[0] >= tileSize[2] ? 0 : 2;
+				if (tileSize[axis] == 1)
+					axis = 1;
+				if (tileSize[axis] == 1)
+					break;
+				tileSize[axis] = (tileSize[axis] + 1) / 2;
+			}
+		}
+		return new Tiling(size, tileSize);
+	}
+
+	public int count() {
+		return count;
+	}
+
+	public boolean isTiled() {
+		return count() > 1;
+	}
+
+	// tiles are numbered x first, then z, then y, the same order blocks are in
+	public int index(int tileX, int tileY, int tileZ) {
+		return (tileY * tiles[2] + tileZ) * tiles[0] + tileX;
+	}
+
+	// index of the tile holding the block, -1 if it's outside the region
+	public int indexAt(int x, int y, int z) {
+		if (x < 0 || y < 0 || z < 0 || x >= size[0] || y >= size[1] || z >= size[2])
+			return -1;
+		return index(x / tileSize[0], y / tileSize[1], z / tileSize[2]);
+	}
+
+	// grid position of the tile along x, y and z
+	public int[] position(int index) {
+		int tileX = index % tiles[0];
+		int rest = index / tiles[0];
+		return new int[] {tileX, rest / tiles[2], rest % tiles[2]};
+	}
+
+	// block position of the tile's corner in the region
+	public int[] origin(int index) {
+		int[] position = position(index);
+		for (int axis = 0; axis < 3; ++axis)
+			position[axis] *= tileSize[axis];
+		return position;
+	}
+
+	// tiles at the far edges are cut off by the region
+	public int[] dimensions(int index) {
+		int[] origin = origin(index);
+		int[] dimensions = new int[3];
+		for (int axis = 0; axis < 3; ++axis)
+			dimensions[axis] = Math.min(tileSize[axis], size[axis] - origin[axis]);
+		return dimensions;
+	}
+
+	public long volume(int index) {
+		int[] dimensions = dimensions(index);
+		return (long) dimensions[0] * dimensions[1] * dimensions[2];
+	}
+
+	/*
+	 * Copies the region's varint block data into tile buffers, one row of tiles along x at a time,
+	 * so a row can be handed on before the next one is allocated.
+	 * Blocks are in x, z, y order, so every tile receives its blocks in that order as well
+	 * and a row only has to be cut where it crosses into the next tile.
+	 */
+	public Splitter splitter(ScratchBuffer blocks) {
+		return new Splitter(blocks);
+	}
+
+	public class Splitter implements Closeable {
+		private final VarintCursor cursor;
+		// where each row of tiles starts on every y of the current layer, [y * tiles[2] + tileZ]
+		private int[] rowStarts;
+		private int layer = -1, layerEnd;
+
+		private Splitter(ScratchBuffer blocks) {
+			cursor = new VarintCursor(blocks);
+		}
+
+		// fills out, indexed by tileX, layers have to be copied in order
+		public void copyRow(int tileY, int tileZ, ScratchBuffer[] out) throws IOException {
+			if (tileY != layer)
+				findRows(tileY);
+			int height = Math.min(tileSize[1], size[1] - tileY * tileSize[1]);
+			int depth = Math.min(tileSize[2], size[2] - tileZ * tileSize[2]);
+			for (int y = 0; y < height; ++y) {
+				cursor.seek(rowStarts[y * tiles[2] + tileZ]);
+				for (int z = 0; z < depth; ++z) {
+					for (int tileX = 0; tileX < tiles[0]; ++tileX) {
+						int run = Math.min(tileSize[0], size[0] - tileX * tileSize[0]);
+						cursor.copy(run, out[tileX]);
+					}
+				}
+			}
+		}
+
+		// one pass over the layer, skipping a row of tiles at a time
+		private void findRows(int tileY) throws IOException {
+			if (tileY != layer + 1)
+				throw new IllegalStateException("Tile layer " + tileY + " copied out of order");
+			int height = Math.min(tileSize[1], size[1] - tileY * tileSize[1]);
+			rowStarts = new int[height * tiles[2]];
+			cursor.seek(layerEnd);
+			for (int y = 0; y < height; ++y) {
+				for (int tileZ = 0; tileZ < tiles[2]; ++tileZ) {
+					rowStarts[y * tiles[2] + tileZ] = cursor.offset();
+					int depth = Math.min(tileSize[2], size[2] - tileZ * tileSize[2]);
+					cursor.skip((long) depth * size[0]);
+				}
+			}
+			layerEnd = cursor.offset();
+			layer = tileY;
+		}
+
+		@Override
+		public void close() {
+			cursor.close();
+		}
+	}
+
+	// reads varints from a scratch buffer in chunks and copies or skips whole ones
+	private static class VarintCursor {
+		private final ScratchBuffer in;
+		private byte[] chunk = ResourcePool.takeBuffer();
+		// offset of the chunk in the block data, and the next byte to read in it
+		private int base, position, limit;
+
+		VarintCursor(ScratchBuffer in) {
+			this.in = in;
+		}
+
+		int offset() {
+			return base + position;
+		}
+
+		// stays in the chunk read last where it can
+		void seek(int offset) {
+			if (offset >= base && offset <= base + limit) {
+				position = offset - base;
+			}
+			else {
+				base = offset;
+				position = limit = 0;
+			}
+		}
+
+		void copy(long count, ScratchBuffer out) throws IOException {
+			advance(count, out);
+		}
+
+		void skip(long count) throws IOException {
+			advance(count, null);
+		}
+
+		private void advance(long count, ScratchBuffer out) throws IOException {
+			while (count > 0) {
+				if (position == limit && !fill())
+					throw new IOException("Block data ends early");
+				int start = position;
+				while (position < limit && count > 0) {
+					// the last byte of a varint has the high bit clear
+					if (chunk[position++] >= 0)
+						count--;
+				}
+				if (out != null)
+					out.write(chunk, start, position - start);
+			}
+		}
+
+		private boolean fill() {
+			base += limit;
+			position = limit = 0;
+			int n = Math.min(chunk.length, in.size() - base);
+			if (n <= 0)
+				return false;
+			in.read(base, chunk, 0, n);
+			limit = n;
+			return true;
+		}
+
+		void close() {
+			ResourcePool.giveBuffer(chunk);
+			chunk = null;
+		}
+	}
+
+}
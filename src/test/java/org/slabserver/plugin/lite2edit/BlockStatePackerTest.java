@@ -0,0 +1,99 @@
+package org.slabserver.plugin.lite2edit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.slabserver.plugin.lite2edit.BlockStateUnpackerTest.indices;
+import static org.slabserver.plugin.lite2edit.BlockStateUnpackerTest.pack;
+import static org.slabserver.plugin.lite2edit.BlockStateUnpackerTest.varints;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Packs varints into block states and unpacks them again.
+ * Varints are fed in chunks of odd sizes, so indices and varints are split across writes.
+ */
+public class BlockStatePackerTest {
+	private static final int NUM_BLOCKS = 4099;
+
+	@Test
+	public void roundTrip() throws IOException {
+		for (int bits = 2; bits <= 16; ++bits) {
+			int[] indices = indices(bits, NUM_BLOCKS);
+			byte[] varints = varints(indices);
+			for (int chunk : new int[] {varints.length, 1, 7, 1000}) {
+				String label = bits + " bits in chunks of " + chunk;
+				long[] words = packVarints(varints, bits, NUM_BLOCKS, identity(bits), chunk);
+				assertArrayEquals(label, pack(indices, bits), words);
+
+				BlockStateUnpacker unpacker = new BlockStateUnpacker(bits, NUM_BLOCKS);
+				byte[] unpacked = new byte[unpacker.maxOutput(words.length)];
+				int length = unpacker.unpack(words, 0, words.length, unpacked, 0);
+				assertArrayEquals(label, varints, Arrays.copyOf(unpacked, length));
+			}
+		}
+	}
+
+	@Test
+	public void remapAndCount() throws IOException {
+		// WorldEdit ids 0 to 9, 4 becomes air and ids past the table become index 0
+		int[] remap = {3, 1, 2, 5, 0, 4, 6, 7};
+		int[] ids = new int[NUM_BLOCKS];
+		int[] expected = new int[NUM_BLOCKS];
+		int nonZero = 0;
+		Random random = new Random(0);
+		for (int i = 0; i < NUM_BLOCKS; ++i) {
+			ids[i] = random.nextInt(10);
+			expected[i] = ids[i] < remap.length ? remap[ids[i]] : 0;
+			if (expected[i] != 0)
+				nonZero++;
+		}
+		try (ScratchBuffer out = ScratchBuffer.allocate(0, new ConversionOptions(false))) {
+			BlockStatePacker packer = new BlockStatePacker(3, NUM_BLOCKS, remap, out);
+			packer.write(varints(ids));
+			packer.finish();
+			assertArrayEquals(pack(expected, 3), longs(out));
+			assertEquals(NUM_BLOCKS, packer.blocksPacked());
+			assertEquals(nonZero, packer.nonZeroBlocks());
+		}
+	}
+
+	@Test
+	public void missingBlocksAreZero() throws IOException {
+		int[] indices = indices(5, NUM_BLOCKS);
+		byte[] varints = varints(Arrays.copyOf(indices, 100));
+		long[] words = packVarints(varints, 5, NUM_BLOCKS, identity(5), 64);
+		Arrays.fill(indices, 100, NUM_BLOCKS, 0);
+		assertArrayEquals(pack(indices, 5), words);
+	}
+
+	private static long[] packVarints(byte[] varints, int bits, int numBlocks, int[] remap, int chunk) throws IOException {
+		try (ScratchBuffer out = ScratchBuffer.allocate(0, new ConversionOptions(false))) {
+			BlockStatePacker packer = new BlockStatePacker(bits, numBlocks, remap, out);
+			for (int offset = 0; offset < varints.length; offset += chunk)
+				packer.write(varints, offset, Math.min(chunk, varints.length - offset));
+			packer.finish();
+			assertEquals(packer.words() * Long.BYTES, out.size());
+			return longs(out);
+		}
+	}
+
+	// the packed longs are written big-endian
+	private static long[] longs(ScratchBuffer out) {
+		long[] words = new long[out.size() / Long.BYTES];
+		ByteBuffer.wrap(out.toByteArray()).asLongBuffer().get(words);
+		return words;
+	}
+
+	private static int[] identity(int bits) {
+		int[] remap = new int[1 << bits];
+		for (int i = 0; i < remap.length; ++i)
+			remap[i] = i;
+		return remap;
+	}
+
+}
@@ -0,0 +1,148 @@
+package org.slabserver.plugin.lite2edit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Compares the word-at-a-time unpacker with the per-index loop Converter used before it.
+ * Widths that divide 64 take the aligned loops, every other width straddles longs.
+ */
+public class BlockStateUnpackerTest {
+	// not a multiple of the indices per long for any width, so the last long is partial
+	private static final int NUM_BLOCKS = 4099;
+
+	@Test
+	public void alignedWidths() {
+		for (int bits : new int[] {2, 4, 8, 16})
+			check(bits);
+	}
+
+	@Test
+	public void straddlingWidths() {
+		for (int bits = 3; bits <= 15; ++bits) {
+			if (64 % bits != 0)
+				check(bits);
+		}
+	}
+
+	@Test
+	public void remap() {
+		int[] indices = indices(5, NUM_BLOCKS);
+		// the sanitizer remaps to other entries of the same palette
+		int[] remap = new int[32];
+		for (int i = 0; i < remap.length; ++i)
+			remap[i] = i % 3 == 0 ? 0 : 31 - i;
+		int[] expected = new int[indices.length];
+		for (int i = 0; i < indices.length; ++i)
+			expected[i] = remap[indices[i]];
+
+		BlockStateUnpacker unpacker = new BlockStateUnpacker(5, NUM_BLOCKS, remap);
+		assertArrayEquals(varints(expected), unpack(unpacker, pack(indices, 5), 3));
+		assertArrayEquals(histogram(expected), unpacker.histogram());
+	}
+
+	private static void check(int bits) {
+		int[] indices = indices(bits, NUM_BLOCKS);
+		long[] words = pack(indices, bits);
+		byte[] expected = varints(baseline(words, bits, NUM_BLOCKS));
+		assertArrayEquals("indices of " + bits + " bits", varints(indices), expected);
+
+		// fed whole and in chunks, so carries cross calls
+		for (int chunk : new int[] {words.length, 1, 3, 64}) {
+			BlockStateUnpacker unpacker = new BlockStateUnpacker(bits, NUM_BLOCKS);
+			assertArrayEquals(bits + " bits in chunks of " + chunk, expected, unpack(unpacker, words, chunk));
+			assertEquals(NUM_BLOCKS, unpacker.blocksUnpacked());
+			assertArrayEquals(bits + " bits histogram", histogram(indices), unpacker.histogram());
+		}
+	}
+
+	private static byte[] unpack(BlockStateUnpacker unpacker, long[] words, int chunk) {
+		byte[] dst = new byte[unpacker.maxOutput(words.length)];
+		int pos = 0;
+		for (int offset = 0; offset < words.length; offset += chunk)
+			pos = unpacker.unpack(words, offset, Math.min(chunk, words.length - offset), dst, pos);
+		return Arrays.copyOf(dst, pos);
+	}
+
+	// the loop Converter unpacked block states with, one index at a time
+	private static int[] baseline(long[] blockStates, int bitsPerBlock, int numBlocks) {
+		int[] indices = new int[numBlocks];
+		long bitmask, bits = 0;
+		int i = 0, bitCount = 0;
+		for (long num : blockStates) {
+			int remainingBits = bitCount + 64;
+			if (bitCount != 0) {
+				bitmask = (1 << (bitsPerBlock - bitCount)) - 1;
+				long newBits = (num & bitmask) << bitCount;
+				bits = bits | newBits;
+				num = num >>> (bitsPerBlock - bitCount);
+				remainingBits -= bitsPerBlock;
+				if (i < numBlocks)
+					indices[i] = (int) bits;
+				i++;
+			}
+
+			bitmask = (1 << bitsPerBlock) - 1;
+			while (remainingBits >= bitsPerBlock) {
+				bits = num & bitmask;
+				num = num >>> bitsPerBlock;
+				remainingBits -= bitsPerBlock;
+				if (i >= numBlocks)
+					break;
+				indices[i] = (int) bits;
+				i++;
+			}
+			bits = num;
+			bitCount = remainingBits;
+		}
+		return indices;
+	}
+
+	static int[] indices(int bits, int numBlocks) {
+		Random random = new Random(bits);
+		int[] indices = new int[numBlocks];
+		for (int i = 0; i < numBlocks; ++i)
+			indices[i] = random.nextInt(1 << bits);
+		return indices;
+	}
+
+	// packs indices the way Litematica does, straddling longs where needed
+	static long[] pack(int[] indices, int bits) {
+		long[] words = new long[(int) (((long) indices.length * bits + 63) / 64)];
+		for (int i = 0; i < indices.length; ++i) {
+			long bit = (long) i * bits;
+			int word = (int) (bit >>> 6);
+			int offset = (int) (bit & 63);
+			words[word] |= (long) indices[i] << offset;
+			if (offset + bits > 64)
+				words[word + 1] |= (long) indices[i] >>> (64 - offset);
+		}
+		return words;
+	}
+
+	static byte[] varints(int[] indices) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(indices.length);
+		for (int v : indices) {
+			while ((v & ~127) != 0) {
+				out.write(v | 128);
+				v >>>= 7;
+			}
+			out.write(v);
+		}
+		return out.toByteArray();
+	}
+
+	private static int[] histogram(int[] indices) {
+		int[] histogram = new int[Arrays.stream(indices).max().getAsInt() + 1];
+		for (int i : indices)
+			histogram[i]++;
+		return histogram;
+	}
+
+}
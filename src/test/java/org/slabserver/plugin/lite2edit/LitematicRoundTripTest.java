@@ -0,0 +1,256 @@
+package org.slabserver.plugin.lite2edit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.llbit.nbt.ByteArrayTag;
+import se.llbit.nbt.CompoundTag;
+import se.llbit.nbt.IntArrayTag;
+import se.llbit.nbt.IntTag;
+import se.llbit.nbt.ListTag;
+import se.llbit.nbt.NamedTag;
+import se.llbit.nbt.ShortTag;
+import se.llbit.nbt.SpecificTag;
+import se.llbit.nbt.Tag;
+
+/*
+ * Converts WorldEdit schematics to litematics and back, checking every block survives.
+ * Palette sizes are picked so the litematic packs 5 and 7 bits per block,
+ * widths that straddle longs, next to an aligned and a two byte varint one.
+ */
+public class LitematicRoundTripTest {
+	private static final int X = 5, Y = 7, Z = 9;
+
+	private File dir;
+	private ConversionOptions options;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("lite2edit-test").toFile();
+		options = new ConversionOptions(false);
+		options.scratchDir = dir;
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	@Test
+	public void fiveBits() throws IOException {
+		roundTrip(20, 5);
+	}
+
+	@Test
+	public void sevenBits() throws IOException {
+		roundTrip(100, 7);
+	}
+
+	@Test
+	public void alignedBits() throws IOException {
+		roundTrip(3, 2);
+	}
+
+	@Test
+	public void twoByteVarints() throws IOException {
+		roundTrip(300, 9);
+	}
+
+	@Test
+	public void v3Offset() throws IOException {
+		String[] palette = {"minecraft:air", "minecraft:stone"};
+		int[] ids = new int[X * Y * Z];
+		Arrays.fill(ids, 1);
+		CompoundTag root = worldEdit(palette, ids);
+		CompoundTag metadata = new CompoundTag();
+		metadata.add("WEOffsetX", new IntTag(3));
+		metadata.add("WEOffsetY", new IntTag(-2));
+		metadata.add("WEOffsetZ", new IntTag(5));
+		root.get("Schematic").asCompound().add("Metadata", metadata);
+
+		File schematic = new File(dir, "test.schem");
+		write(root, schematic);
+		File litematic = Converter.worldEditToLitematic(schematic, new File(dir, "litematic"), options);
+		options.schematicWriter = SchematicWriter.V3;
+		List<File> schematics = Converter.litematicToWorldEdit(litematic, new File(dir, "schematic"), options);
+
+		// v3 nests the schematic in an unnamed root
+		CompoundTag v3 = read(schematics.get(0)).get("").asCompound().get("Schematic").asCompound();
+		assertEquals(3, v3.get("Version").intValue());
+		assertArrayEquals(new int[] {3, -2, 5}, v3.get("Offset").intArray());
+		// without WorldEdit's origin the offset is taken from zero
+		assertFalse(v3.get("Metadata").isCompoundTag());
+		assertArrayEquals(worldEditBlocks(root.get("Schematic").asCompound()), worldEditBlocks(v3));
+
+		// and back, taking the region position from the v3 offset
+		File fromV3 = Converter.worldEditToLitematic(schematics.get(0), new File(dir, "fromV3"), options);
+		CompoundTag position = null;
+		for (NamedTag tag : read(fromV3).get("").asCompound().get("Regions").asCompound())
+			position = tag.unpack().asCompound().get("Position").asCompound();
+		assertEquals(3, position.get("x").intValue());
+		assertEquals(-2, position.get("y").intValue());
+		assertEquals(5, position.get("z").intValue());
+	}
+
+	private void roundTrip(int paletteSize, int bits) throws IOException {
+		String[] palette = new String[paletteSize];
+		palette[0] = "minecraft:air";
+		palette[1] = "minecraft:oak_stairs[facing=east,half=bottom]";
+		for (int i = 2; i < paletteSize; ++i)
+			palette[i] = "minecraft:block_" + i;
+		String[] blocks = new String[X * Y * Z];
+		int[] ids = new int[blocks.length];
+		int nonAir = 0;
+		Random random = new Random(paletteSize);
+		for (int i = 0; i < blocks.length; ++i) {
+			// every entry is used once, so the palette keeps its size
+			ids[i] = i < paletteSize ? i : random.nextInt(paletteSize);
+			blocks[i] = palette[ids[i]];
+			if (ids[i] != 0)
+				nonAir++;
+		}
+
+		File schematic = new File(dir, "test.schem");
+		write(worldEdit(palette, ids), schematic);
+		File litematic = Converter.worldEditToLitematic(schematic, new File(dir, "litematic"), options);
+
+		CompoundTag root = read(litematic).get("").asCompound();
+		CompoundTag metadata = root.get("Metadata").asCompound();
+		assertEquals(blocks.length, metadata.get("TotalVolume").intValue());
+		assertEquals(nonAir, metadata.get("TotalBlocks").intValue());
+		CompoundTag region = null;
+		for (NamedTag tag : root.get("Regions").asCompound())
+			region = tag.unpack().asCompound();
+		String[] litePalette = litematicPalette(region);
+		assertEquals(bits, BlockStateUnpacker.bitsPerBlock(litePalette.length));
+		long[] words = region.get("BlockStates").longArray();
+		assertEquals(BlockStatePacker.words(blocks.length, bits), words.length);
+		assertArrayEquals(blocks, litematicBlocks(words, bits, litePalette));
+
+		List<File> schematics = Converter.litematicToWorldEdit(litematic, new File(dir, "schematic"), options);
+		assertEquals(1, schematics.size());
+		assertArrayEquals(blocks, worldEditBlocks(read(schematics.get(0)).get("Schematic").asCompound()));
+	}
+
+	private static CompoundTag worldEdit(String[] palette, int[] ids) {
+		CompoundTag wePalette = new CompoundTag();
+		for (int i = 0; i < palette.length; ++i)
+			wePalette.add(palette[i], new IntTag(i));
+		CompoundTag worldEdit = new CompoundTag();
+		worldEdit.add("Version", new IntTag(2));
+		worldEdit.add("DataVersion", new IntTag(2230));
+		worldEdit.add("Width", new ShortTag((short) X));
+		worldEdit.add("Height", new ShortTag((short) Y));
+		worldEdit.add("Length", new ShortTag((short) Z));
+		worldEdit.add("Offset", new IntArrayTag(new int[3]));
+		worldEdit.add("PaletteMax", new IntTag(palette.length));
+		worldEdit.add("Palette", wePalette);
+		worldEdit.add("BlockData", new ByteArrayTag(BlockStateUnpackerTest.varints(ids)));
+		worldEdit.add("BlockEntities", new ListTag(Tag.TAG_COMPOUND, new ArrayList<>()));
+		CompoundTag root = new CompoundTag();
+		root.add("Schematic", worldEdit);
+		return root;
+	}
+
+	private static String[] litematicPalette(CompoundTag region) {
+		ListTag palette = region.get("BlockStatePalette").asList();
+		String[] names = new String[palette.size()];
+		for (int i = 0; i < names.length; ++i) {
+			CompoundTag blockState = palette.get(i).asCompound();
+			List<String> properties = new ArrayList<>();
+			Tag tag = blockState.get("Properties");
+			if (tag.isCompoundTag()) {
+				for (NamedTag property : tag.asCompound())
+					properties.add(property.name() + "=" + property.unpack().stringValue());
+			}
+			names[i] = blockState.get("Name").stringValue();
+			if (!properties.isEmpty())
+				names[i] += "[" + String.join(",", properties) + "]";
+		}
+		return names;
+	}
+
+	// reads every index on its own, the way Litematica's bit array does
+	private static String[] litematicBlocks(long[] words, int bits, String[] palette) {
+		String[] blocks = new String[X * Y * Z];
+		long mask = (1L << bits) - 1;
+		for (int i = 0; i < blocks.length; ++i) {
+			long bit = (long) i * bits;
+			int word = (int) (bit >>> 6);
+			int offset = (int) (bit & 63);
+			long index = words[word] >>> offset;
+			if (offset + bits > 64)
+				index |= words[word + 1] << (64 - offset);
+			blocks[i] = palette[(int) (index & mask)];
+		}
+		return blocks;
+	}
+
+	// Sponge v2 keeps the palette and block data in the schematic, v3 in its Blocks
+	private static String[] worldEditBlocks(CompoundTag schematic) {
+		CompoundTag blocks = schematic.get("Blocks").isCompoundTag() ? schematic.get("Blocks").asCompound() : schematic;
+		Tag data = blocks.get(blocks == schematic ? "BlockData" : "Data");
+		String[] palette = new String[blocks.get("Palette").asCompound().size()];
+		for (NamedTag entry : blocks.get("Palette").asCompound())
+			palette[entry.unpack().intValue()] = entry.name();
+
+		byte[] varints = data.byteArray();
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < varints.length; ) {
+			int v = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = varints[i++];
+				v |= (b & 127) << shift;
+				if (b >= 0)
+					break;
+			}
+			names.add(palette[v]);
+		}
+		return names.toArray(new String[0]);
+	}
+
+	private static void write(CompoundTag root, File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(file)))) {
+			root.write(out);
+		}
+	}
+
+	private static CompoundTag read(File file) throws IOException {
+		// CompoundTag.read expects the end tag that closes the unnamed outer compound
+		try (DataInputStream in = new DataInputStream(new SequenceInputStream(
+				new GZIPInputStream(new FileInputStream(file)), new ByteArrayInputStream(new byte[1])))) {
+			return CompoundTag.read(in).asCompound();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files)
+				delete(child);
+		}
+		file.delete();
+	}
+
+}